@@ -67,6 +67,7 @@ public interface AmazonS3Service {
 
   InputStream get(final String key, Optional<String> version);
 
+  /** all versions of exactly the given key, not of other keys sharing it as prefix */
   List<ObjectVersion> getAllVersions(String key);
 
   boolean hasVersionId(String objectKey);
@@ -75,7 +76,40 @@ public interface AmazonS3Service {
 
   void delete(final String key);
 
+  /**
+   * server-side copy of the given source object version (latest if empty) to the target key,
+   * preserving content-type, user metadata, headers and tags of the source. Copies between shards
+   * on different endpoints and copies of spooled objects not yet drained are streamed through the
+   * service and keep content-type and tags only. Copying the latest version of a key onto itself
+   * fails unless its content-type is replaced.
+   */
+  Uni<UploadResult> copy(String sourceKey, Optional<String> sourceVersion, String targetKey);
+
+  /**
+   * server-side copy of the given source object version (latest if empty) to the target key,
+   * content-type and tags present in metadata replace those of the source
+   */
+  Uni<UploadResult> copy(
+      String sourceKey, Optional<String> sourceVersion, String targetKey, UploadMetadata metadata);
+
+  /**
+   * server-side copy of the source object to the target key, followed by deleting the source.
+   * Moving a key onto itself doesn't change anything.
+   */
+  Uni<UploadResult> move(String sourceKey, String targetKey);
+
+  Uni<UploadResult> move(String sourceKey, String targetKey, UploadMetadata metadata);
+
   boolean exists(String key);
 
   boolean addTags(String key, Map<String, String> tags);
+
+  /** true once startup bucket verification and connection warm-up have completed successfully */
+  boolean isReady();
+
+  /**
+   * completes once the service is ready. Background verification is retried with backoff until
+   * it succeeds, a failed blocking verification fails the startup instead.
+   */
+  Uni<Void> ready();
 }
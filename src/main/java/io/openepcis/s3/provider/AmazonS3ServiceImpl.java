@@ -16,53 +16,203 @@
 package io.openepcis.s3.provider;
 
 import io.openepcis.s3.AmazonS3Service;
-import io.openepcis.s3.S3AsyncUpload;
 import io.openepcis.s3.UploadMetadata;
 import io.openepcis.s3.UploadResult;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.Startup;
 import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.services.s3.model.ObjectVersion;
 
+/**
+ * {@link AmazonS3Service} routing every key to its {@link S3Shard}. The service is created on
+ * application start, so bucket verification and connection warm-up don't wait for the first
+ * request, see {@link S3Config.Startup}. {@link S3WriteBehindQueue} starts on its own.
+ */
+@Startup
 @ApplicationScoped
 @RequiredArgsConstructor
 public class AmazonS3ServiceImpl implements AmazonS3Service {
 
-  private final S3Client client;
+  private final S3ShardRouter router;
+
+  private final S3WriteBehindQueue writeBehind;
 
   private final S3Config config;
 
-  private final S3AsyncUpload asyncUpload;
+  private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+  private volatile boolean closed;
 
   @PostConstruct
+  void startup() {
+    if (config.startup().async()) {
+      verify(1, Infrastructure.getDefaultWorkerPool());
+    } else {
+      verifyAndWarmUp();
+      ready.complete(null);
+    }
+  }
+
+  @PreDestroy
+  void shutdown() {
+    closed = true;
+  }
+
+  // retried until it succeeds, e.g. once S3 is reachable, the service isn't ready meanwhile
+  private void verify(final int attempt, final Executor executor) {
+    CompletableFuture.runAsync(this::verifyAndWarmUp, executor)
+        .whenComplete(
+            (v, e) -> {
+              if (e == null) {
+                ready.complete(null);
+                return;
+              }
+              if (closed) {
+                return;
+              }
+              final Throwable cause =
+                  e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+              final long delay = backoff(attempt);
+              Log.warn(
+                  "S3 startup verification failed, attempt "
+                      + attempt
+                      + ", retrying in "
+                      + delay
+                      + "ms: "
+                      + cause.getMessage());
+              verify(
+                  attempt + 1,
+                  CompletableFuture.delayedExecutor(
+                      delay, TimeUnit.MILLISECONDS, Infrastructure.getDefaultWorkerPool()));
+            });
+  }
+
+  private long backoff(final int attempts) {
+    final long max = config.startup().maxRetryBackoff().toMillis();
+    long delay = config.startup().retryBackoff().toMillis();
+    for (int i = 1; i < attempts && delay < max; i++) {
+      delay *= 2;
+    }
+    return Math.min(delay, max);
+  }
+
+  @Override
+  public boolean isReady() {
+    return ready.isDone();
+  }
+
+  @Override
+  public Uni<Void> ready() {
+    return Uni.createFrom().completionStage(ready);
+  }
+
+  private void verifyAndWarmUp() {
+    if (config.startup().verifyBuckets()) {
+      verifyBucket();
+    }
+    if (config.startup().warmupConnections() > 0) {
+      warmUp(config.startup().warmupConnections());
+    }
+  }
+
   public void verifyBucket() {
-    try {
-      client.headBucket(HeadBucketRequest.builder().bucket(config.bucket()).build());
-    } catch (NoSuchBucketException e) {
-      client.createBucket(CreateBucketRequest.builder().bucket(config.bucket()).build());
+    for (S3Shard shard : router.getShards()) {
+      try {
+        shard
+            .getClient()
+            .headBucket(HeadBucketRequest.builder().bucket(shard.getBucket()).build());
+      } catch (NoSuchBucketException e) {
+        shard
+            .getClient()
+            .createBucket(CreateBucketRequest.builder().bucket(shard.getBucket()).build());
+      }
+    }
+  }
+
+  /**
+   * fire concurrent HEAD requests on every distinct client, forcing the connection pools to open
+   * and handshake the given number of connections before the first real request
+   */
+  private void warmUp(int connections) {
+    final Map<S3Client, String> clients = new IdentityHashMap<>();
+    final Map<S3AsyncClient, String> asyncClients = new IdentityHashMap<>();
+    for (S3Shard shard : router.getShards()) {
+      clients.putIfAbsent(shard.getClient(), shard.getBucket());
+      asyncClients.putIfAbsent(shard.getAsyncClient(), shard.getBucket());
+    }
+    final List<CompletableFuture<?>> requests = new ArrayList<>();
+    clients.forEach(
+        (client, bucket) ->
+            IntStream.range(0, connections)
+                .forEach(
+                    i ->
+                        requests.add(
+                            CompletableFuture.runAsync(
+                                () -> client.headBucket(headBucket(bucket)),
+                                Infrastructure.getDefaultWorkerPool()))));
+    asyncClients.forEach(
+        (asyncClient, bucket) ->
+            IntStream.range(0, connections)
+                .forEach(i -> requests.add(asyncClient.headBucket(headBucket(bucket)))));
+    final List<Throwable> failures =
+        requests.stream()
+            .map(request -> request.handle((r, e) -> e).join())
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+    if (!failures.isEmpty()) {
+      // warm-up is best effort, the pools just fill on demand
+      Log.warn(
+          failures.size()
+              + " of "
+              + requests.size()
+              + " S3 warm-up requests failed: "
+              + failures.get(0).getMessage());
     }
   }
 
+  private static HeadBucketRequest headBucket(String bucket) {
+    return HeadBucketRequest.builder().bucket(bucket).build();
+  }
+
   @Override
   public String put(String key, final InputStream in, long contentLength) {
+    writeBehind.discard(key);
+    final S3Shard shard = router.shardFor(key);
     final PutObjectRequest putObjectRequest =
-        PutObjectRequest.builder().bucket(config.bucket()).key(key).build();
-    client.putObject(putObjectRequest, RequestBody.fromInputStream(in, contentLength));
+        PutObjectRequest.builder().bucket(shard.getBucket()).key(key).build();
+    shard.getClient().putObject(putObjectRequest, RequestBody.fromInputStream(in, contentLength));
     return key;
   }
 
   @Override
   public String put(String key, InputStream in, UploadMetadata metadata) {
-    client.putObject(
-        metadata.request(config.bucket(), key).build(),
-        RequestBody.fromInputStream(in, metadata.getContentLength().get()));
+    writeBehind.discard(key);
+    final S3Shard shard = router.shardFor(key);
+    shard
+        .getClient()
+        .putObject(
+            metadata.request(shard.getBucket(), key).build(),
+            RequestBody.fromInputStream(in, metadata.getContentLength().get()));
     return key;
   }
 
@@ -79,8 +229,13 @@ public class AmazonS3ServiceImpl implements AmazonS3Service {
 
   @Override
   public Uni<UploadResult> putAsync(String key, InputStream in, UploadMetadata metadata) {
+    if (writeBehind.isEnabled()) {
+      return Uni.createFrom().completionStage(writeBehind.enqueue(key, in, metadata));
+    }
+    final S3Shard shard = router.shardFor(key);
     return Uni.createFrom()
-        .completionStage(asyncUpload.upload(config.bucket(), key, in, Optional.of(metadata)));
+        .completionStage(
+            shard.getAsyncUpload().upload(shard.getBucket(), key, in, Optional.of(metadata)));
   }
 
   @Override
@@ -89,22 +244,71 @@ public class AmazonS3ServiceImpl implements AmazonS3Service {
   }
 
   public InputStream get(final String key, Optional<String> versionId) {
+    if (versionId.isEmpty()) {
+      final Optional<InputStream> spooled = writeBehind.get(key);
+      if (spooled.isPresent()) {
+        return spooled.get();
+      }
+    }
+    NoSuchKeyException notFound = null;
+    for (S3Shard shard : router.candidatesFor(key)) {
+      try {
+        return get(shard, key, versionId);
+      } catch (NoSuchKeyException e) {
+        notFound = e;
+      }
+    }
+    throw notFound;
+  }
+
+  private InputStream get(final S3Shard shard, final String key, Optional<String> versionId) {
     final GetObjectRequest.Builder getObjectRequestBuilder =
-        GetObjectRequest.builder().bucket(config.bucket()).key(key);
+        GetObjectRequest.builder().bucket(shard.getBucket()).key(key);
     if (versionId.isPresent()) {
       getObjectRequestBuilder.versionId(versionId.get());
     }
-    return client.getObject(getObjectRequestBuilder.build(), ResponseTransformer.toInputStream());
+    final ResponseInputStream<GetObjectResponse> in =
+        shard
+            .getClient()
+            .getObject(getObjectRequestBuilder.build(), ResponseTransformer.toInputStream());
+    final Map<String, String> objectMetadata = in.response().metadata();
+    final String blobKey = objectMetadata.get(S3AsyncUploadImpl.DEDUP_BLOB_METADATA);
+    if (blobKey == null) {
+      return in;
+    }
+    // deduplicated upload, resolve the reference to its content-addressed blob. References copied
+    // server-side from another shard sharing this client point to the blob in their source bucket
+    in.abort();
+    final String blobBucket =
+        objectMetadata.getOrDefault(
+            S3AsyncUploadImpl.DEDUP_BLOB_BUCKET_METADATA, shard.getBucket());
+    return shard
+        .getClient()
+        .getObject(
+            GetObjectRequest.builder().bucket(blobBucket).key(blobKey).build(),
+            ResponseTransformer.toInputStream());
   }
 
-  // check for object version list
+  // check for object version list, all versions of a key live on the same shard. Listing by
+  // prefix also returns other keys starting with the key, which may belong to other shards, so
+  // only exact matches are returned.
   @Override
   public List<ObjectVersion> getAllVersions(String key) {
-    final ListObjectVersionsRequest listObjectVersionsRequest =
-        ListObjectVersionsRequest.builder().bucket(config.bucket()).prefix(key).build();
-    final ListObjectVersionsResponse listObjectVersionsResponse =
-        client.listObjectVersions(listObjectVersionsRequest);
-    return listObjectVersionsResponse.versions();
+    List<ObjectVersion> versions = List.of();
+    for (S3Shard shard : router.candidatesFor(key)) {
+      final ListObjectVersionsRequest listObjectVersionsRequest =
+          ListObjectVersionsRequest.builder().bucket(shard.getBucket()).prefix(key).build();
+      final ListObjectVersionsResponse listObjectVersionsResponse =
+          shard.getClient().listObjectVersions(listObjectVersionsRequest);
+      versions =
+          listObjectVersionsResponse.versions().stream()
+              .filter(version -> key.equals(version.key()))
+              .collect(Collectors.toList());
+      if (!versions.isEmpty()) {
+        break;
+      }
+    }
+    return versions;
   }
 
   /*public String getLatestVersionId(String objectKey) {
@@ -119,49 +323,218 @@ public class AmazonS3ServiceImpl implements AmazonS3Service {
   }*/
   @Override
   public boolean hasVersionId(String objectKey) {
-
+    final S3Shard shard = locate(objectKey);
     HeadObjectRequest headObjectRequest =
-        HeadObjectRequest.builder().bucket(config.bucket()).key(objectKey).build();
-    HeadObjectResponse headObjectResponse = client.headObject(headObjectRequest);
+        HeadObjectRequest.builder().bucket(shard.getBucket()).key(objectKey).build();
+    HeadObjectResponse headObjectResponse = shard.getClient().headObject(headObjectRequest);
     return headObjectResponse.versionId() != null;
   }
 
   @Override
   public void delete(String key) {
-    final DeleteObjectRequest deleteObjectRequest =
-        DeleteObjectRequest.builder().bucket(config.bucket()).key(key).build();
-    client.deleteObject(deleteObjectRequest);
+    writeBehind.discard(key);
+    // with read fallback a not yet migrated copy on another shard would stay visible
+    for (S3Shard shard : router.candidatesFor(key)) {
+      final DeleteObjectRequest deleteObjectRequest =
+          DeleteObjectRequest.builder().bucket(shard.getBucket()).key(key).build();
+      shard.getClient().deleteObject(deleteObjectRequest);
+    }
+  }
+
+  @Override
+  public Uni<UploadResult> copy(
+      String sourceKey, Optional<String> sourceVersion, String targetKey) {
+    return copy(sourceKey, sourceVersion, targetKey, Optional.empty());
+  }
+
+  @Override
+  public Uni<UploadResult> copy(
+      String sourceKey, Optional<String> sourceVersion, String targetKey, UploadMetadata metadata) {
+    return copy(sourceKey, sourceVersion, targetKey, Optional.of(metadata));
+  }
+
+  @Override
+  public Uni<UploadResult> move(String sourceKey, String targetKey) {
+    return move(sourceKey, targetKey, Optional.empty());
+  }
+
+  @Override
+  public Uni<UploadResult> move(String sourceKey, String targetKey, UploadMetadata metadata) {
+    return move(sourceKey, targetKey, Optional.of(metadata));
+  }
+
+  private Uni<UploadResult> move(
+      String sourceKey, String targetKey, Optional<UploadMetadata> metadata) {
+    if (sourceKey.equals(targetKey)) {
+      // deleting the source would delete the target, only apply metadata overrides if any
+      return metadata.isPresent()
+          ? copy(sourceKey, Optional.empty(), targetKey, metadata)
+          : Uni.createFrom()
+              .item(
+                  UploadResult.builder()
+                      .bucketName(router.shardFor(sourceKey).getBucket())
+                      .key(sourceKey)
+                      .build());
+    }
+    return copy(sourceKey, Optional.empty(), targetKey, metadata)
+        .emitOn(Infrastructure.getDefaultWorkerPool())
+        .invoke(() -> delete(sourceKey));
+  }
+
+  private Uni<UploadResult> copy(
+      String sourceKey,
+      Optional<String> sourceVersion,
+      String targetKey,
+      Optional<UploadMetadata> metadata) {
+    final boolean sameObject = sourceKey.equals(targetKey) && sourceVersion.isEmpty();
+    if (sameObject && metadata.flatMap(UploadMetadata::getContentType).isEmpty()) {
+      // S3 rejects copying an object onto itself without replacing its metadata
+      return Uni.createFrom()
+          .failure(
+              new IllegalArgumentException(
+                  "unable to copy "
+                      + sourceKey
+                      + " onto itself without changing its content-type"));
+    }
+    // discarding a pending upload of the target and locating the source may block
+    return Uni.createFrom()
+        .deferred(() -> startCopy(sourceKey, sourceVersion, targetKey, metadata, sameObject))
+        .runSubscriptionOn(Infrastructure.getDefaultWorkerPool());
+  }
+
+  private Uni<UploadResult> startCopy(
+      String sourceKey,
+      Optional<String> sourceVersion,
+      String targetKey,
+      Optional<UploadMetadata> metadata,
+      boolean sameObject) {
+    if (!sameObject) {
+      // a pending spooled upload of the target would overwrite the copy once drained
+      writeBehind.discard(targetKey);
+    }
+    final S3Shard source = locate(sourceKey);
+    final S3Shard target = router.shardFor(targetKey);
+    final boolean spooled = sourceVersion.isEmpty() && writeBehind.isPending(sourceKey);
+    if (!spooled && source.getClient() == target.getClient()) {
+      return Uni.createFrom()
+          .completionStage(
+              source
+                  .getServerSideCopy()
+                  .copy(
+                      source.getBucket(),
+                      sourceKey,
+                      sourceVersion,
+                      target.getBucket(),
+                      targetKey,
+                      metadata));
+    }
+    // source not uploaded yet or on a different endpoint, copy through this JVM keeping
+    // content-type and tags only
+    final Optional<UploadMetadata> spooledMetadata =
+        spooled ? writeBehind.metadata(sourceKey) : Optional.empty();
+    final Uni<UploadMetadata> sourceMetadata =
+        spooledMetadata.isPresent()
+            ? Uni.createFrom().item(spooledMetadata.get())
+            : Uni.createFrom()
+                .completionStage(
+                    source
+                        .getServerSideCopy()
+                        .sourceMetadata(source.getBucket(), sourceKey, sourceVersion));
+    return sourceMetadata
+        .emitOn(Infrastructure.getDefaultWorkerPool())
+        .chain(
+            sourceMeta -> {
+              final UploadMetadata.UploadMetadataBuilder builder =
+                  UploadMetadata.builder(sourceMeta);
+              metadata.flatMap(UploadMetadata::getContentType).ifPresent(builder::contentType);
+              metadata.flatMap(UploadMetadata::getTags).ifPresent(builder::tags);
+              final InputStream in = get(sourceKey, sourceVersion);
+              return putAsync(targetKey, in, builder.build())
+                  .onTermination()
+                  .invoke(
+                      () -> {
+                        try {
+                          in.close();
+                        } catch (IOException e) {
+                          Log.warn("unable to close " + sourceKey + ": " + e.getMessage());
+                        }
+                      });
+            });
   }
 
   @Override
   public boolean exists(String key) {
+    if (writeBehind.isPending(key)) {
+      return true;
+    }
+    for (S3Shard shard : router.candidatesFor(key)) {
+      if (exists(shard, key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean exists(S3Shard shard, String key) {
     try {
-      client.headObject(HeadObjectRequest.builder().bucket(config.bucket()).key(key).build());
+      shard
+          .getClient()
+          .headObject(HeadObjectRequest.builder().bucket(shard.getBucket()).key(key).build());
       return true;
     } catch (NoSuchKeyException e) {
       return false;
     }
   }
 
+  // shard holding the key, with read fallback enabled this may not be its owner yet
+  private S3Shard locate(String key) {
+    final List<S3Shard> candidates = router.candidatesFor(key);
+    if (candidates.size() > 1) {
+      for (S3Shard shard : candidates) {
+        if (exists(shard, key)) {
+          return shard;
+        }
+      }
+    }
+    return candidates.get(0);
+  }
+
   public boolean addTags(String key, Map<String, String> tags) {
+    try {
+      // an upload not yet drained is not in S3, it is spooled again and uploaded with the tags
+      final Map<String, String> cleaned =
+          AmazonS3Service.cleanupTagSet(tags)
+              .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+      while (writeBehind.isPending(key)) {
+        if (writeBehind.addTags(key, cleaned)) {
+          return true;
+        }
+      }
+    } catch (Exception e) {
+      return false;
+    }
+    final S3Shard shard = locate(key);
     try {
       List<Tag> tagSet =
           new ArrayList<>(
-              client
+              shard
+                  .getClient()
                   .getObjectTagging(
-                      GetObjectTaggingRequest.builder().bucket(config.bucket()).key(key).build())
+                      GetObjectTaggingRequest.builder().bucket(shard.getBucket()).key(key).build())
                   .tagSet());
       AmazonS3Service.cleanupTagSet(tags)
           .forEach(
               entry ->
                   tagSet.add(Tag.builder().key(entry.getKey()).value(entry.getValue()).build()));
       PutObjectTaggingResponse response =
-          client.putObjectTagging(
-              PutObjectTaggingRequest.builder()
-                  .bucket(config.bucket())
-                  .key(key)
-                  .tagging(Tagging.builder().tagSet(tagSet).build())
-                  .build());
+          shard
+              .getClient()
+              .putObjectTagging(
+                  PutObjectTaggingRequest.builder()
+                      .bucket(shard.getBucket())
+                      .key(key)
+                      .tagging(Tagging.builder().tagSet(tagSet).build())
+                      .build());
       return response.sdkHttpResponse().isSuccessful();
     } catch (Exception e) {
       return false;
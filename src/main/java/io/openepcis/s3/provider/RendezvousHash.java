@@ -0,0 +1,71 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Rendezvous (highest random weight) hashing: every node scores a key and the highest score wins.
+ * The mapping only depends on the node names, adding a node moves just the keys which now score
+ * highest on it, removing a node just the keys it owned.
+ */
+final class RendezvousHash {
+
+  private final long[] seeds;
+
+  RendezvousHash(final List<String> nodes) {
+    this.seeds = new long[nodes.size()];
+    for (int i = 0; i < seeds.length; i++) {
+      seeds[i] = mix(hash(nodes.get(i)));
+    }
+  }
+
+  /** index of the node owning the given key */
+  int select(final String key) {
+    final long keyHash = hash(key);
+    int selected = 0;
+    long highest = Long.MIN_VALUE;
+    for (int i = 0; i < seeds.length; i++) {
+      final long score = mix(keyHash ^ seeds[i]);
+      if (i == 0 || score > highest) {
+        highest = score;
+        selected = i;
+      }
+    }
+    return selected;
+  }
+
+  // 64 bit FNV-1a
+  private static long hash(final String value) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  // murmur3 finalizer, spreads FNV output evenly across the full 64 bit range
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
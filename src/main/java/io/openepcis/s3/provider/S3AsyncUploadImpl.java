@@ -22,17 +22,23 @@ import io.openepcis.s3.AmazonS3Service;
 import io.openepcis.s3.S3AsyncUpload;
 import io.openepcis.s3.UploadMetadata;
 import io.openepcis.s3.UploadResult;
+import io.quarkus.logging.Log;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import lombok.RequiredArgsConstructor;
 import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
@@ -47,21 +53,60 @@ import software.amazon.awssdk.utils.CollectionUtils;
  * S3 put 3. Initiate Multipart Upload for content with more than 5 MegaBytes which will allow us to
  * stream up to 50 GigaBytes
  *
+ * <p>With deduplication enabled the content is hashed while it is read and stored once under a
+ * content-addressed blob key, the given key is written as an empty object referencing the blob
+ * through the {@link #DEDUP_BLOB_METADATA} and {@link #DEDUP_BLOB_BUCKET_METADATA} user
+ * metadata. Content below 5 MegaBytes is hashed before uploading and not transferred at all if
+ * the blob already exists, larger content is streamed to a staging key and copied server-side to
+ * its blob key if that doesn't exist yet.
+ *
  * <p>see: https://docs.aws.amazon.com/AmazonS3/latest/userguide/qfacts.html
  */
 @ApplicationScoped
-@RequiredArgsConstructor
 public class S3AsyncUploadImpl implements S3AsyncUpload {
 
+  /** user metadata on a reference object holding the key of the deduplicated blob */
+  public static final String DEDUP_BLOB_METADATA = "openepcis-blob";
+
+  /**
+   * user metadata on a reference object holding the bucket of the deduplicated blob, references
+   * copied server-side to another bucket keep pointing to it
+   */
+  public static final String DEDUP_BLOB_BUCKET_METADATA = "openepcis-blob-bucket";
+
   // it' silly but we need to have at least 5 MB for S3 to allow multipart upload
   private static final int FIVE_MEGABYTES = 5242880;
 
   private final S3Client client;
   private final S3AsyncClient asyncClient;
+  private final Optional<String> dedupKeyPrefix;
+  private final S3ServerSideCopy serverSideCopy;
   private ByteBufAllocator byteBufAllocator = PooledByteBufAllocator.DEFAULT;
 
   private ExecutorService executorService = Executors.newCachedThreadPool();
 
+  public S3AsyncUploadImpl(final S3Client client, final S3AsyncClient asyncClient) {
+    this.client = client;
+    this.asyncClient = asyncClient;
+    this.dedupKeyPrefix = Optional.empty();
+    this.serverSideCopy = null;
+  }
+
+  @Inject
+  public S3AsyncUploadImpl(
+      final S3Client client, final S3AsyncClient asyncClient, final S3Config config) {
+    this.client = client;
+    this.asyncClient = asyncClient;
+    this.dedupKeyPrefix =
+        config.dedup().enabled() ? Optional.of(config.dedup().keyPrefix()) : Optional.empty();
+    this.serverSideCopy = new S3ServerSideCopy(asyncClient, config.copy());
+  }
+
+  @PreDestroy
+  public void close() {
+    executorService.shutdown();
+  }
+
   @Override
   public CompletableFuture<UploadResult> upload(
       final String bucketName,
@@ -72,6 +117,10 @@ public class S3AsyncUploadImpl implements S3AsyncUpload {
         () -> {
           final UploadMetadata metadata = uploadMetadata.orElse(UploadMetadata.builder().build());
 
+          if (dedupKeyPrefix.isPresent()) {
+            return getDeduplicatedUploadResult(bucketName, key, in, metadata, dedupKeyPrefix.get());
+          }
+
           // if content-length is defined use direct upload with TransferManager
           if (metadata.getContentLength().isPresent()) {
             return getUploadResult(bucketName, key, in, metadata);
@@ -110,6 +159,107 @@ public class S3AsyncUploadImpl implements S3AsyncUpload {
         executorService);
   }
 
+  private UploadResult getDeduplicatedUploadResult(
+      String bucketName, String key, InputStream in, UploadMetadata metadata, String keyPrefix) {
+    final MessageDigest digest = sha256();
+    final ByteBuf buffer = byteBufAllocator.directBuffer(FIVE_MEGABYTES);
+    try {
+      int bytesWritten = buffer.writeBytes(in, FIVE_MEGABYTES);
+      int totalBytesWritten = bytesWritten;
+      while (bytesWritten != -1 && totalBytesWritten < FIVE_MEGABYTES) {
+        bytesWritten = buffer.writeBytes(in, FIVE_MEGABYTES);
+        totalBytesWritten += bytesWritten == -1 ? 0 : bytesWritten;
+      }
+      digest.update(buffer.nioBuffer());
+      final UploadMetadata blobMetadata =
+          UploadMetadata.builder().contentType(metadata.getContentType().orElse(null)).build();
+
+      final String blobKey;
+      if (totalBytesWritten < FIVE_MEGABYTES) {
+        // complete content is known, only upload it if the blob doesn't exist yet
+        blobKey = keyPrefix + HexFormat.of().formatHex(digest.digest());
+        if (!objectExists(bucketName, blobKey)) {
+          getUploadResult(
+              bucketName,
+              blobKey,
+              buffer.nioBuffer(),
+              UploadMetadata.builder(blobMetadata).contentLength((long) totalBytesWritten).build());
+        }
+      } else {
+        // hash is known only after streaming, upload to a staging key first
+        final String stagingKey = keyPrefix + "staging/" + UUID.randomUUID();
+        // a failed staging upload is aborted, no staging object is left behind
+        final UploadResult staged =
+            getAsyncMultipartUploadResult(
+                bucketName,
+                stagingKey,
+                new DigestInputStream(in, digest),
+                blobMetadata,
+                buffer,
+                totalBytesWritten);
+        blobKey = keyPrefix + HexFormat.of().formatHex(digest.digest());
+        try {
+          if (!objectExists(bucketName, blobKey)) {
+            serverSideCopy
+                .copy(
+                    bucketName,
+                    stagingKey,
+                    Optional.empty(),
+                    bucketName,
+                    blobKey,
+                    Optional.empty())
+                .join();
+          }
+        } finally {
+          // on versioned buckets deleting without the version only adds a delete marker
+          deleteStagingObject(bucketName, stagingKey, staged.getVersionId());
+        }
+      }
+
+      final PutObjectRequest.Builder requestBuilder =
+          UploadMetadata.builder(metadata)
+              .contentLength(0L)
+              .build()
+              .request(bucketName, key)
+              .metadata(
+                  Map.of(DEDUP_BLOB_METADATA, blobKey, DEDUP_BLOB_BUCKET_METADATA, bucketName));
+      return createUploadResult(
+          bucketName, key, client.putObject(requestBuilder.build(), RequestBody.empty()));
+    } catch (CompletionException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new CompletionException(e);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  private void deleteStagingObject(String bucketName, String key, String versionId) {
+    try {
+      client.deleteObject(
+          DeleteObjectRequest.builder().bucket(bucketName).key(key).versionId(versionId).build());
+    } catch (SdkException e) {
+      Log.warn("unable to delete staging object " + key + ": " + e.getMessage());
+    }
+  }
+
+  private boolean objectExists(String bucketName, String key) {
+    try {
+      client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build());
+      return true;
+    } catch (NoSuchKeyException e) {
+      return false;
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   private UploadResult getAsyncMultipartUploadResult(
       String bucketName,
       String key,
@@ -163,10 +313,6 @@ public class S3AsyncUploadImpl implements S3AsyncUpload {
                     .eTag(uploadPartResponse.eTag())
                     .build());
           } else {
-            asyncClient.abortMultipartUpload(
-                AbortMultipartUploadRequest.builder()
-                    .uploadId(createMultipartUploadResponse.uploadId())
-                    .build());
             throw new IOException(
                 uploadPartResponse
                     .sdkHttpResponse()
@@ -199,6 +345,10 @@ public class S3AsyncUploadImpl implements S3AsyncUpload {
                       "HttpStatus: "
                           + completeMultipartUploadResponse.sdkHttpResponse().statusCode()));
         }
+      } catch (IOException | RuntimeException e) {
+        // don't leave the parts uploaded so far behind
+        abortMultipartUpload(bucketName, key, createMultipartUploadResponse.uploadId());
+        throw e;
       } finally {
         outputBuffer.release();
       }
@@ -212,6 +362,19 @@ public class S3AsyncUploadImpl implements S3AsyncUpload {
     }
   }
 
+  private void abortMultipartUpload(String bucketName, String key, String uploadId) {
+    try {
+      client.abortMultipartUpload(
+          AbortMultipartUploadRequest.builder()
+              .bucket(bucketName)
+              .key(key)
+              .uploadId(uploadId)
+              .build());
+    } catch (SdkException e) {
+      Log.warn("unable to abort multipart upload of " + key + ": " + e.getMessage());
+    }
+  }
+
   private UploadResult getUploadResult(
       String bucketName, String key, ByteBuffer buffer, UploadMetadata metadata)
       throws CompletionException {
@@ -17,6 +17,11 @@ package io.openepcis.s3.provider;
 
 import io.quarkus.runtime.annotations.StaticInitSafe;
 import io.smallrye.config.ConfigMapping;
+import io.smallrye.config.WithDefault;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
 
 @StaticInitSafe
 @ConfigMapping(prefix = "s3")
@@ -28,4 +33,109 @@ public interface S3Config {
   String xsdSchemaKeyPrefix();
 
   String documentKeyPrefixDateFormat();
+
+  /**
+   * additional shards object keys are spread across, next to the default {@link #bucket()}. The
+   * name "default" is reserved. Adding a shard moves a share of the existing keys to it, those
+   * objects have to be migrated, see {@link #shardReadFallback()}.
+   */
+  Map<String, Shard> shards();
+
+  /**
+   * look up keys missing on their shard on the remaining shards as well, for objects stored before
+   * a shard was added and not migrated yet. Deletes are then sent to all shards.
+   */
+  @WithDefault("false")
+  boolean shardReadFallback();
+
+  WriteBehind writeBehind();
+
+  Copy copy();
+
+  Dedup dedup();
+
+  Startup startup();
+
+  interface Shard {
+    String bucket();
+
+    /** endpoint of this shard, the default S3 clients are used if not set */
+    Optional<URI> endpoint();
+
+    @WithDefault("false")
+    boolean pathStyleAccess();
+  }
+
+  /**
+   * write-behind mode for {@code putAsync}: payloads are spooled to local disk and acknowledged
+   * before they are drained to S3 in the background
+   */
+  interface WriteBehind {
+    @WithDefault("false")
+    boolean enabled();
+
+    @WithDefault("s3-spool")
+    String directory();
+
+    /** maximum number of concurrent uploads draining the spool */
+    @WithDefault("4")
+    int concurrency();
+
+    /** initial retry delay, doubled with every failed attempt up to {@link #maxRetryBackoff()} */
+    @WithDefault("PT1S")
+    Duration retryBackoff();
+
+    /** failed uploads are retried until they succeed, at least at this interval */
+    @WithDefault("PT1M")
+    Duration maxRetryBackoff();
+  }
+
+  interface Copy {
+    /**
+     * objects larger than this are copied with parallel UploadPartCopy requests, objects above 5
+     * GigaBytes always are as CopyObject does not support them
+     */
+    @WithDefault("268435456")
+    long multipartThreshold();
+
+    @WithDefault("67108864")
+    long partSize();
+
+    /** maximum number of UploadPartCopy requests in flight per copy */
+    @WithDefault("8")
+    int concurrency();
+  }
+
+  /**
+   * content-addressed deduplication for async uploads: content is stored once under its SHA-256
+   * below the key prefix, the uploaded key becomes an empty reference to it
+   */
+  interface Dedup {
+    @WithDefault("false")
+    boolean enabled();
+
+    @WithDefault("blobs/")
+    String keyPrefix();
+  }
+
+  interface Startup {
+    /** verify the configured buckets exist on startup, creating missing ones */
+    @WithDefault("true")
+    boolean verifyBuckets();
+
+    /** run verification and warm-up in the background instead of blocking bean initialization */
+    @WithDefault("true")
+    boolean async();
+
+    /** connections to pre-open on the sync and async client of every endpoint, 0 to disable */
+    @WithDefault("0")
+    int warmupConnections();
+
+    /** delay before retrying a failed background verification, doubled on every attempt */
+    @WithDefault("PT1S")
+    Duration retryBackoff();
+
+    @WithDefault("PT1M")
+    Duration maxRetryBackoff();
+  }
 }
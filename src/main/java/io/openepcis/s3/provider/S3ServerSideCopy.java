@@ -0,0 +1,308 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import io.openepcis.s3.AmazonS3Service;
+import io.openepcis.s3.UploadMetadata;
+import io.openepcis.s3.UploadResult;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+/**
+ * Server-side copy of objects between buckets reachable through the same client, no object data
+ * passes through this JVM. Objects up to the configured threshold are copied with a single
+ * CopyObject request, larger objects with parallel UploadPartCopy requests for byte ranges of the
+ * source. Content-Type, user metadata and tags of the source are preserved unless overridden.
+ *
+ * <p>see: https://docs.aws.amazon.com/AmazonS3/latest/userguide/CopyingObjectsMPUapi.html
+ */
+@RequiredArgsConstructor
+public class S3ServerSideCopy {
+
+  // CopyObject can't copy objects larger than 5 GigaBytes
+  private static final long FIVE_GIGABYTES = 5368709120L;
+
+  // minimum size for every part but the last one
+  private static final long FIVE_MEGABYTES = 5242880L;
+
+  private static final int MAX_PARTS = 10000;
+
+  private final S3AsyncClient asyncClient;
+
+  private final S3Config.Copy config;
+
+  public CompletableFuture<UploadResult> copy(
+      final String sourceBucket,
+      final String sourceKey,
+      final Optional<String> sourceVersion,
+      final String targetBucket,
+      final String targetKey,
+      final Optional<UploadMetadata> metadata) {
+    final HeadObjectRequest.Builder headObjectRequestBuilder =
+        HeadObjectRequest.builder().bucket(sourceBucket).key(sourceKey);
+    sourceVersion.ifPresent(headObjectRequestBuilder::versionId);
+    return asyncClient
+        .headObject(headObjectRequestBuilder.build())
+        .thenCompose(
+            source -> {
+              if (source.contentLength() > Math.min(config.multipartThreshold(), FIVE_GIGABYTES)) {
+                return multipartCopy(
+                    sourceBucket,
+                    sourceKey,
+                    sourceVersion,
+                    targetBucket,
+                    targetKey,
+                    source,
+                    metadata);
+              }
+              return copyObject(
+                  sourceBucket,
+                  sourceKey,
+                  sourceVersion,
+                  targetBucket,
+                  targetKey,
+                  source,
+                  metadata);
+            });
+  }
+
+  /**
+   * content-type, content-length and tags of the given object, the content-length of a
+   * deduplicated reference is the one of its blob
+   */
+  public CompletableFuture<UploadMetadata> sourceMetadata(
+      final String bucket, final String key, final Optional<String> version) {
+    final HeadObjectRequest.Builder headObjectRequestBuilder =
+        HeadObjectRequest.builder().bucket(bucket).key(key);
+    version.ifPresent(headObjectRequestBuilder::versionId);
+    return asyncClient
+        .headObject(headObjectRequestBuilder.build())
+        .thenCompose(
+            head -> {
+              final UploadMetadata.UploadMetadataBuilder builder =
+                  UploadMetadata.builder().contentType(head.contentType());
+              final String blobKey = head.metadata().get(S3AsyncUploadImpl.DEDUP_BLOB_METADATA);
+              if (blobKey == null) {
+                return CompletableFuture.completedFuture(
+                    builder.contentLength(head.contentLength()));
+              }
+              // a reference is an empty object, its content is the one of the blob
+              final String blobBucket =
+                  head.metadata()
+                      .getOrDefault(S3AsyncUploadImpl.DEDUP_BLOB_BUCKET_METADATA, bucket);
+              return asyncClient
+                  .headObject(HeadObjectRequest.builder().bucket(blobBucket).key(blobKey).build())
+                  .thenApply(blob -> builder.contentLength(blob.contentLength()));
+            })
+        .thenCombine(
+            sourceTags(bucket, key, version),
+            (builder, tags) -> builder.tags(tags.isEmpty() ? null : tags).build());
+  }
+
+  private CompletableFuture<UploadResult> copyObject(
+      final String sourceBucket,
+      final String sourceKey,
+      final Optional<String> sourceVersion,
+      final String targetBucket,
+      final String targetKey,
+      final HeadObjectResponse source,
+      final Optional<UploadMetadata> metadata) {
+    final CopyObjectRequest.Builder requestBuilder =
+        CopyObjectRequest.builder()
+            .sourceBucket(sourceBucket)
+            .sourceKey(sourceKey)
+            .destinationBucket(targetBucket)
+            .destinationKey(targetKey);
+    sourceVersion.ifPresent(requestBuilder::sourceVersionId);
+    final Optional<String> contentType = metadata.flatMap(UploadMetadata::getContentType);
+    if (contentType.isPresent()) {
+      // REPLACE drops all metadata of the source, carry over everything not overridden
+      requestBuilder
+          .metadataDirective(MetadataDirective.REPLACE)
+          .contentType(contentType.get())
+          .metadata(source.metadata())
+          .cacheControl(source.cacheControl())
+          .contentDisposition(source.contentDisposition())
+          .contentEncoding(source.contentEncoding())
+          .contentLanguage(source.contentLanguage());
+    }
+    final Optional<Map<String, String>> tags = metadata.flatMap(UploadMetadata::getTags);
+    if (tags.isPresent()) {
+      requestBuilder.taggingDirective(TaggingDirective.REPLACE).tagging(tagging(tags.get()));
+    }
+    return asyncClient
+        .copyObject(requestBuilder.build())
+        .thenApply(
+            res ->
+                UploadResult.builder() //
+                    .bucketName(targetBucket) //
+                    .key(targetKey) //
+                    .eTag(res.copyObjectResult().eTag()) //
+                    .versionId(res.versionId()) //
+                    .build());
+  }
+
+  private CompletableFuture<UploadResult> multipartCopy(
+      final String sourceBucket,
+      final String sourceKey,
+      final Optional<String> sourceVersion,
+      final String targetBucket,
+      final String targetKey,
+      final HeadObjectResponse source,
+      final Optional<UploadMetadata> metadata) {
+    // a multipart upload starts without any metadata, everything has to be carried over
+    final CompletableFuture<Map<String, String>> tags =
+        metadata.flatMap(UploadMetadata::getTags).isPresent()
+            ? CompletableFuture.completedFuture(metadata.get().getTags().get())
+            : sourceTags(sourceBucket, sourceKey, sourceVersion);
+    return tags.thenCompose(
+        tagMap -> {
+          final CreateMultipartUploadRequest.Builder requestBuilder =
+              CreateMultipartUploadRequest.builder()
+                  .bucket(targetBucket)
+                  .key(targetKey)
+                  .contentType(
+                      metadata
+                          .flatMap(UploadMetadata::getContentType)
+                          .orElse(source.contentType()))
+                  .metadata(source.metadata())
+                  .cacheControl(source.cacheControl())
+                  .contentDisposition(source.contentDisposition())
+                  .contentEncoding(source.contentEncoding())
+                  .contentLanguage(source.contentLanguage());
+          if (!tagMap.isEmpty()) {
+            requestBuilder.tagging(tagging(tagMap));
+          }
+          return asyncClient
+              .createMultipartUpload(requestBuilder.build())
+              .thenCompose(
+                  upload -> {
+                    final UploadPartCopyRequest.Builder partRequestBuilder =
+                        UploadPartCopyRequest.builder()
+                            .sourceBucket(sourceBucket)
+                            .sourceKey(sourceKey)
+                            .destinationBucket(targetBucket)
+                            .destinationKey(targetKey)
+                            .uploadId(upload.uploadId());
+                    sourceVersion.ifPresent(partRequestBuilder::sourceVersionId);
+                    return copyParts(partRequestBuilder.build(), source.contentLength())
+                        .thenCompose(
+                            parts ->
+                                asyncClient.completeMultipartUpload(
+                                    CompleteMultipartUploadRequest.builder()
+                                        .bucket(targetBucket)
+                                        .key(targetKey)
+                                        .uploadId(upload.uploadId())
+                                        .multipartUpload(
+                                            CompletedMultipartUpload.builder().parts(parts).build())
+                                        .build()))
+                        .thenApply(
+                            res ->
+                                UploadResult.builder() //
+                                    .bucketName(targetBucket) //
+                                    .key(targetKey) //
+                                    .eTag(res.eTag()) //
+                                    .versionId(res.versionId()) //
+                                    .build())
+                        .exceptionallyCompose(
+                            e ->
+                                asyncClient
+                                    .abortMultipartUpload(
+                                        AbortMultipartUploadRequest.builder()
+                                            .bucket(targetBucket)
+                                            .key(targetKey)
+                                            .uploadId(upload.uploadId())
+                                            .build())
+                                    .<UploadResult>handle(
+                                        (abort, abortError) -> {
+                                          throw e instanceof CompletionException
+                                              ? (CompletionException) e
+                                              : new CompletionException(e);
+                                        }));
+                  });
+        });
+  }
+
+  private CompletableFuture<List<CompletedPart>> copyParts(
+      final UploadPartCopyRequest template, final long contentLength) {
+    final long partSize =
+        Math.max(
+            Math.max(config.partSize(), FIVE_MEGABYTES),
+            (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+    final CompletedPart[] parts =
+        new CompletedPart[(int) ((contentLength + partSize - 1) / partSize)];
+    // every lane copies every n-th part, so at most n requests are in flight
+    final int lanes = Math.max(1, Math.min(config.concurrency(), parts.length));
+    final CompletableFuture<?>[] futures = new CompletableFuture<?>[lanes];
+    for (int lane = 0; lane < lanes; lane++) {
+      futures[lane] = copyPart(template, lane, lanes, partSize, contentLength, parts);
+    }
+    return CompletableFuture.allOf(futures).thenApply(v -> Arrays.asList(parts));
+  }
+
+  private CompletableFuture<Void> copyPart(
+      final UploadPartCopyRequest template,
+      final int index,
+      final int stride,
+      final long partSize,
+      final long contentLength,
+      final CompletedPart[] parts) {
+    if (index >= parts.length) {
+      return CompletableFuture.completedFuture(null);
+    }
+    final long first = index * partSize;
+    final long last = Math.min(first + partSize, contentLength) - 1;
+    return asyncClient
+        .uploadPartCopy(
+            template.toBuilder()
+                .partNumber(index + 1)
+                .copySourceRange("bytes=" + first + "-" + last)
+                .build())
+        .thenCompose(
+            res -> {
+              parts[index] =
+                  CompletedPart.builder()
+                      .partNumber(index + 1)
+                      .eTag(res.copyPartResult().eTag())
+                      .build();
+              return copyPart(template, index + stride, stride, partSize, contentLength, parts);
+            });
+  }
+
+  private CompletableFuture<Map<String, String>> sourceTags(
+      final String bucket, final String key, final Optional<String> version) {
+    final GetObjectTaggingRequest.Builder requestBuilder =
+        GetObjectTaggingRequest.builder().bucket(bucket).key(key);
+    version.ifPresent(requestBuilder::versionId);
+    return asyncClient
+        .getObjectTagging(requestBuilder.build())
+        .thenApply(
+            res -> res.tagSet().stream().collect(Collectors.toMap(Tag::key, Tag::value)));
+  }
+
+  private static Tagging tagging(final Map<String, String> tags) {
+    final Set<Tag> tagSet = new HashSet<>();
+    AmazonS3Service.cleanupTagSet(tags)
+        .forEach(
+            entry -> tagSet.add(Tag.builder().key(entry.getKey()).value(entry.getValue()).build()));
+    return Tagging.builder().tagSet(tagSet).build();
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import io.openepcis.s3.S3AsyncUpload;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+
+/** a single storage shard: one bucket together with the clients connected to its endpoint */
+@Getter
+@RequiredArgsConstructor
+public final class S3Shard {
+
+  private final String name;
+  private final String bucket;
+  private final S3Client client;
+  private final S3AsyncClient asyncClient;
+  private final S3AsyncUpload asyncUpload;
+  private final S3ServerSideCopy serverSideCopy;
+}
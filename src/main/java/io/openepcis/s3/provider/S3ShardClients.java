@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.ConfigProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.apache.ProxyConfiguration;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ServiceClientConfiguration;
+
+/**
+ * Builds the clients of shards with their own endpoint. HTTP clients are set explicitly, as the
+ * SDK's classpath lookup fails with more than one implementation present and doesn't work in
+ * native images. Region, credentials and override configuration are taken from the default
+ * clients, timeouts, pool sizes and proxy from the {@code quarkus.s3.sync-client} and {@code
+ * quarkus.s3.async-client} properties configuring them.
+ */
+final class S3ShardClients {
+
+  private static final String SYNC_CLIENT = "quarkus.s3.sync-client.";
+  private static final String ASYNC_CLIENT = "quarkus.s3.async-client.";
+
+  private S3ShardClients() {
+    // utility class
+  }
+
+  static S3Client syncClient(final S3Client defaultClient, final S3Config.Shard shard) {
+    final Config config = ConfigProvider.getConfig();
+    final ApacheHttpClient.Builder httpClient = ApacheHttpClient.builder();
+    duration(config, SYNC_CLIENT + "connection-timeout").ifPresent(httpClient::connectionTimeout);
+    duration(config, SYNC_CLIENT + "socket-timeout").ifPresent(httpClient::socketTimeout);
+    config
+        .getOptionalValue(SYNC_CLIENT + "apache.max-connections", Integer.class)
+        .ifPresent(httpClient::maxConnections);
+    duration(config, SYNC_CLIENT + "apache.connection-acquisition-timeout")
+        .ifPresent(httpClient::connectionAcquisitionTimeout);
+    proxy(config, SYNC_CLIENT + "apache.proxy.")
+        .ifPresent(
+            endpoint -> {
+              final ProxyConfiguration.Builder proxy =
+                  ProxyConfiguration.builder().endpoint(endpoint);
+              config
+                  .getOptionalValue(SYNC_CLIENT + "apache.proxy.username", String.class)
+                  .ifPresent(proxy::username);
+              config
+                  .getOptionalValue(SYNC_CLIENT + "apache.proxy.password", String.class)
+                  .ifPresent(proxy::password);
+              httpClient.proxyConfiguration(proxy.build());
+            });
+    final S3ServiceClientConfiguration defaults = defaultClient.serviceClientConfiguration();
+    return S3Client.builder()
+        .httpClientBuilder(httpClient)
+        .overrideConfiguration(defaults.overrideConfiguration())
+        .region(defaults.region())
+        .credentialsProvider(defaults.credentialsProvider())
+        .endpointOverride(shard.endpoint().get())
+        .forcePathStyle(shard.pathStyleAccess())
+        .build();
+  }
+
+  static S3AsyncClient asyncClient(
+      final S3AsyncClient defaultClient, final S3Config.Shard shard) {
+    final Config config = ConfigProvider.getConfig();
+    final NettyNioAsyncHttpClient.Builder httpClient = NettyNioAsyncHttpClient.builder();
+    duration(config, ASYNC_CLIENT + "connection-timeout").ifPresent(httpClient::connectionTimeout);
+    duration(config, ASYNC_CLIENT + "read-timeout").ifPresent(httpClient::readTimeout);
+    duration(config, ASYNC_CLIENT + "write-timeout").ifPresent(httpClient::writeTimeout);
+    config
+        .getOptionalValue(ASYNC_CLIENT + "max-concurrency", Integer.class)
+        .ifPresent(httpClient::maxConcurrency);
+    duration(config, ASYNC_CLIENT + "connection-acquisition-timeout")
+        .ifPresent(httpClient::connectionAcquisitionTimeout);
+    proxy(config, ASYNC_CLIENT + "proxy.")
+        .ifPresent(
+            endpoint ->
+                httpClient.proxyConfiguration(
+                    software.amazon.awssdk.http.nio.netty.ProxyConfiguration.builder()
+                        .scheme(endpoint.getScheme())
+                        .host(endpoint.getHost())
+                        .port(endpoint.getPort())
+                        .build()));
+    final S3ServiceClientConfiguration defaults = defaultClient.serviceClientConfiguration();
+    return S3AsyncClient.builder()
+        .httpClientBuilder(httpClient)
+        .overrideConfiguration(defaults.overrideConfiguration())
+        .region(defaults.region())
+        .credentialsProvider(defaults.credentialsProvider())
+        .endpointOverride(shard.endpoint().get())
+        .forcePathStyle(shard.pathStyleAccess())
+        .build();
+  }
+
+  private static Optional<Duration> duration(final Config config, final String name) {
+    return config.getOptionalValue(name, Duration.class);
+  }
+
+  private static Optional<URI> proxy(final Config config, final String prefix) {
+    if (!config.getOptionalValue(prefix + "enabled", Boolean.class).orElse(false)) {
+      return Optional.empty();
+    }
+    return config.getOptionalValue(prefix + "endpoint", URI.class);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import io.openepcis.s3.S3AsyncUpload;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.util.*;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+/**
+ * Routes object keys to storage shards. The default {@link S3Config#bucket()} using the injected
+ * clients is always shard "default", additional shards are configured through {@link
+ * S3Config#shards()}. Shards with their own endpoint get dedicated clients and therefore
+ * dedicated connection pools, see {@link S3ShardClients}, shards without an endpoint share the
+ * default clients.
+ *
+ * <p>Keys are mapped with {@link RendezvousHash} on the shard names. Adding a shard moves the keys
+ * which now score highest on it, roughly one in n for n shards. Routing doesn't migrate objects,
+ * those keys either have to be copied to the new shard or {@link S3Config#shardReadFallback()}
+ * enabled, which looks them up on the remaining shards when missing on their owner.
+ */
+@ApplicationScoped
+public class S3ShardRouter {
+
+  public static final String DEFAULT_SHARD = "default";
+
+  private final List<S3Shard> shards;
+
+  private final RendezvousHash hash;
+
+  private final boolean readFallback;
+
+  private final List<SdkAutoCloseable> ownedClients = new ArrayList<>();
+
+  private final List<S3AsyncUploadImpl> ownedUploads = new ArrayList<>();
+
+  public S3ShardRouter(
+      final S3Client client,
+      final S3AsyncClient asyncClient,
+      final S3Config config,
+      final S3AsyncUpload asyncUpload) {
+    if (config.shards().containsKey(DEFAULT_SHARD)) {
+      // would tie with the default shard on every key and never receive any
+      throw new IllegalArgumentException(
+          "shard name '" + DEFAULT_SHARD + "' is reserved for s3.bucket");
+    }
+    final S3ServerSideCopy serverSideCopy = new S3ServerSideCopy(asyncClient, config.copy());
+    final List<S3Shard> list = new ArrayList<>();
+    list.add(
+        new S3Shard(
+            DEFAULT_SHARD, config.bucket(), client, asyncClient, asyncUpload, serverSideCopy));
+    new TreeMap<>(config.shards())
+        .forEach(
+            (name, shard) ->
+                list.add(
+                    shard.endpoint().isEmpty()
+                        ? new S3Shard(
+                            name,
+                            shard.bucket(),
+                            client,
+                            asyncClient,
+                            asyncUpload,
+                            serverSideCopy)
+                        : createShard(name, shard, client, asyncClient, config)));
+    this.shards = Collections.unmodifiableList(list);
+    this.hash = new RendezvousHash(list.stream().map(S3Shard::getName).toList());
+    this.readFallback = config.shardReadFallback();
+  }
+
+  public List<S3Shard> getShards() {
+    return shards;
+  }
+
+  public S3Shard shardFor(final String key) {
+    if (shards.size() == 1) {
+      return shards.get(0);
+    }
+    return shards.get(hash.select(key));
+  }
+
+  /**
+   * shards which may hold the given key, its owner first followed by the remaining shards if read
+   * fallback is enabled
+   */
+  public List<S3Shard> candidatesFor(final String key) {
+    final S3Shard owner = shardFor(key);
+    if (!readFallback || shards.size() == 1) {
+      return List.of(owner);
+    }
+    final List<S3Shard> candidates = new ArrayList<>(shards.size());
+    candidates.add(owner);
+    shards.stream().filter(shard -> shard != owner).forEach(candidates::add);
+    return candidates;
+  }
+
+  @PreDestroy
+  void close() {
+    ownedUploads.forEach(S3AsyncUploadImpl::close);
+    ownedUploads.clear();
+    ownedClients.forEach(SdkAutoCloseable::close);
+    ownedClients.clear();
+  }
+
+  private S3Shard createShard(
+      final String name,
+      final S3Config.Shard shard,
+      final S3Client client,
+      final S3AsyncClient asyncClient,
+      final S3Config config) {
+    final S3Client shardClient = S3ShardClients.syncClient(client, shard);
+    final S3AsyncClient shardAsyncClient = S3ShardClients.asyncClient(asyncClient, shard);
+    final S3AsyncUploadImpl shardAsyncUpload =
+        new S3AsyncUploadImpl(shardClient, shardAsyncClient, config);
+    ownedClients.add(shardClient);
+    ownedClients.add(shardAsyncClient);
+    ownedUploads.add(shardAsyncUpload);
+    return new S3Shard(
+        name,
+        shard.bucket(),
+        shardClient,
+        shardAsyncClient,
+        shardAsyncUpload,
+        new S3ServerSideCopy(shardAsyncClient, config.copy()));
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import io.openepcis.s3.UploadMetadata;
+import io.openepcis.s3.UploadResult;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.Startup;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable write-behind queue for async uploads. Payloads are written to a {@link SpoolFile} in the
+ * configured directory and fsynced before the upload is acknowledged, a bounded pool then drains
+ * the spool to S3, retrying failed uploads with exponential backoff until they succeed. Spool
+ * files found on startup have been acknowledged and are replayed in sequence order. Until an
+ * object is drained, reads of its key are served from the spool.
+ *
+ * <p>At most one upload per key is in flight, so uploads of the same key never overtake each
+ * other. Only the latest spooled upload of a key is drained, older ones are superseded.
+ */
+@Startup
+@ApplicationScoped
+public class S3WriteBehindQueue {
+
+  private final S3Config.WriteBehind config;
+
+  private final S3ShardRouter router;
+
+  // latest spooled entry per key
+  private final Map<String, SpoolFile> pending = new ConcurrentHashMap<>();
+
+  // entry per key whose upload is in flight
+  private final Map<String, SpoolFile> uploading = new ConcurrentHashMap<>();
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final ExecutorService spoolExecutor = Executors.newCachedThreadPool();
+
+  private ExecutorService drainExecutor;
+
+  private ScheduledExecutorService retryExecutor;
+
+  private Path directory;
+
+  public S3WriteBehindQueue(final S3Config config, final S3ShardRouter router) {
+    this.config = config.writeBehind();
+    this.router = router;
+  }
+
+  @PostConstruct
+  void replay() {
+    if (!config.enabled()) {
+      return;
+    }
+    drainExecutor = Executors.newFixedThreadPool(config.concurrency());
+    retryExecutor = Executors.newSingleThreadScheduledExecutor();
+    directory = Paths.get(config.directory());
+    try {
+      Files.createDirectories(directory);
+      final List<SpoolFile> entries = SpoolFile.replay(directory);
+      for (SpoolFile entry : entries) {
+        sequence.accumulateAndGet(entry.sequence + 1, Math::max);
+        schedule(entry);
+      }
+      if (!entries.isEmpty()) {
+        Log.info("replaying " + entries.size() + " spooled uploads from " + directory);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @PreDestroy
+  void shutdown() {
+    // anything not yet drained stays in the spool and is replayed on the next start
+    spoolExecutor.shutdown();
+    if (drainExecutor != null) {
+      retryExecutor.shutdownNow();
+      drainExecutor.shutdown();
+    }
+  }
+
+  public boolean isEnabled() {
+    return config.enabled();
+  }
+
+  /**
+   * spool the payload and acknowledge once it is durably stored on local disk, the returned
+   * result carries no eTag or versionId as the object has not been uploaded yet
+   */
+  public CompletableFuture<UploadResult> enqueue(
+      final String key, final InputStream in, final UploadMetadata metadata) {
+    return CompletableFuture.supplyAsync(
+        () -> {
+          try {
+            schedule(
+                SpoolFile.write(directory, sequence.getAndIncrement(), key, in, metadata));
+            return UploadResult.builder()
+                .bucketName(router.shardFor(key).getBucket())
+                .key(key)
+                .build();
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        },
+        spoolExecutor);
+  }
+
+  public boolean isPending(final String key) {
+    return pending.containsKey(key);
+  }
+
+  /** payload of the latest not yet drained upload for the given key */
+  public Optional<InputStream> get(final String key) {
+    final SpoolFile entry = pending.get(key);
+    if (entry == null) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(entry.openPayload());
+    } catch (NoSuchFileException e) {
+      // drained in the meantime
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** metadata of the latest not yet drained upload for the given key */
+  public Optional<UploadMetadata> metadata(final String key) {
+    return Optional.ofNullable(pending.get(key)).map(SpoolFile::metadata);
+  }
+
+  /**
+   * add tags to the latest not yet drained upload of the given key by spooling it again with the
+   * merged tags, false if there is no such upload or it was drained, superseded or discarded in the
+   * meantime
+   */
+  public boolean addTags(final String key, final Map<String, String> tags) throws IOException {
+    final SpoolFile entry = pending.get(key);
+    if (entry == null) {
+      return false;
+    }
+    final UploadMetadata metadata = entry.metadata();
+    final Map<String, String> merged = new HashMap<>(metadata.getTags().orElse(Map.of()));
+    merged.putAll(tags);
+    final SpoolFile updated;
+    try (InputStream in = entry.openPayload()) {
+      updated =
+          SpoolFile.write(
+              directory,
+              sequence.getAndIncrement(),
+              key,
+              in,
+              UploadMetadata.builder(metadata).tags(merged).build());
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    if (!pending.replace(key, entry, updated)) {
+      updated.delete();
+      return false;
+    }
+    // an entry being uploaded is deleted once its upload is done
+    if (uploading.get(key) != entry) {
+      entry.delete();
+    }
+    submit(key);
+    return true;
+  }
+
+  /**
+   * drop pending uploads for the given key. An upload attempt of that key currently in flight is
+   * waited for, so it can't overwrite a subsequent put or delete. Uploads waiting for a retry are
+   * not in flight.
+   */
+  public void discard(final String key) {
+    final SpoolFile entry = pending.remove(key);
+    SpoolFile current;
+    while ((current = uploading.get(key)) != null) {
+      synchronized (current) {
+        while (uploading.get(key) == current) {
+          try {
+            current.wait();
+          } catch (InterruptedException e) {
+            // the entry must not be replayed after a restart, an entry in flight is deleted by
+            // its upload once done
+            if (entry != null && entry != current) {
+              entry.delete();
+            }
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+    }
+    if (entry != null) {
+      entry.delete();
+    }
+  }
+
+  private void schedule(final SpoolFile entry) {
+    final SpoolFile[] superseded = new SpoolFile[1];
+    pending.compute(
+        entry.key,
+        (key, current) -> {
+          if (current == null || current.sequence < entry.sequence) {
+            superseded[0] = current;
+            return entry;
+          }
+          superseded[0] = entry;
+          return current;
+        });
+    // an entry being uploaded is deleted once its upload is done
+    if (superseded[0] != null && uploading.get(entry.key) != superseded[0]) {
+      superseded[0].delete();
+    }
+    submit(entry.key);
+  }
+
+  private void submit(final String key) {
+    try {
+      drainExecutor.execute(() -> drain(key));
+    } catch (RejectedExecutionException e) {
+      // shutting down, the entry stays in the spool
+    }
+  }
+
+  private void drain(final String key) {
+    final SpoolFile entry = pending.get(key);
+    if (entry == null || uploading.putIfAbsent(key, entry) != null) {
+      // nothing to do, or an upload of this key is in flight and submits the key again when done
+      return;
+    }
+    if (pending.get(key) != entry) {
+      // superseded or discarded before the upload started
+      release(entry);
+      return;
+    }
+    try {
+      final S3Shard shard = router.shardFor(key);
+      try (InputStream in = entry.openPayload()) {
+        shard
+            .getAsyncUpload()
+            .upload(shard.getBucket(), key, in, Optional.of(entry.metadata()))
+            .join();
+      }
+      pending.remove(key, entry);
+      release(entry);
+    } catch (Exception e) {
+      final boolean retry = pending.get(key) == entry;
+      release(entry);
+      if (retry) {
+        entry.attempts++;
+        final long delay = backoff(entry.attempts);
+        Log.warn(
+            "draining "
+                + key
+                + " failed, attempt "
+                + entry.attempts
+                + ", retrying in "
+                + delay
+                + "ms: "
+                + e.getMessage());
+        try {
+          retryExecutor.schedule(() -> submit(key), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+          // shutting down, the entry stays in the spool
+        }
+      }
+    }
+  }
+
+  // end the upload of the entry, wake up discards waiting for it and continue with a newer entry
+  private void release(final SpoolFile entry) {
+    uploading.remove(entry.key, entry);
+    synchronized (entry) {
+      entry.notifyAll();
+    }
+    final SpoolFile latest = pending.get(entry.key);
+    if (latest != entry) {
+      // drained, superseded or discarded
+      entry.delete();
+      if (latest != null) {
+        submit(entry.key);
+      }
+    }
+  }
+
+  private long backoff(final int attempts) {
+    final long max = config.maxRetryBackoff().toMillis();
+    long delay = config.retryBackoff().toMillis();
+    for (int i = 1; i < attempts && delay < max; i++) {
+      delay *= 2;
+    }
+    return Math.min(delay, max);
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import io.openepcis.s3.UploadMetadata;
+import io.quarkus.logging.Log;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A single object spooled by {@link S3WriteBehindQueue}. The file is named after its sequence
+ * number and laid out as:
+ *
+ * <pre>
+ * int    header length
+ * byte[] header (key, content-type, tags)
+ * byte[] payload until end of file
+ * </pre>
+ *
+ * It is written to a temporary file, fsynced and only then renamed to its final name, so every
+ * spool file found in the directory has been completely written.
+ */
+final class SpoolFile {
+
+  static final String SPOOL_SUFFIX = ".spool";
+  static final String TEMP_SUFFIX = ".tmp";
+
+  final long sequence;
+  final String key;
+  final Path file;
+  private final String contentType;
+  private final Map<String, String> tags;
+  private final long payloadOffset;
+  private final long payloadSize;
+
+  // failed upload attempts, only accessed by the drain task currently owning the key
+  int attempts;
+
+  private SpoolFile(
+      long sequence,
+      String key,
+      Path file,
+      String contentType,
+      Map<String, String> tags,
+      long payloadOffset,
+      long payloadSize) {
+    this.sequence = sequence;
+    this.key = key;
+    this.file = file;
+    this.contentType = contentType;
+    this.tags = tags;
+    this.payloadOffset = payloadOffset;
+    this.payloadSize = payloadSize;
+  }
+
+  /** durably write the payload to a new spool file, returns once it is synced to disk */
+  static SpoolFile write(
+      final Path directory,
+      final long sequence,
+      final String key,
+      final InputStream in,
+      final UploadMetadata metadata)
+      throws IOException {
+    final Path file = directory.resolve(String.format("%020d%s", sequence, SPOOL_SUFFIX));
+    final Path temp = directory.resolve(file.getFileName() + TEMP_SUFFIX);
+    final byte[] header = header(key, metadata);
+    final long size;
+    try (FileChannel channel =
+        FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      final DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      out.writeInt(header.length);
+      out.write(header);
+      size = in.transferTo(out);
+      out.flush();
+      channel.force(true);
+    } catch (IOException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+    forceDirectory(directory);
+    return new SpoolFile(
+        sequence,
+        key,
+        file,
+        metadata.getContentType().orElse(null),
+        metadata.getTags().orElse(Collections.emptyMap()),
+        Integer.BYTES + header.length,
+        size);
+  }
+
+  static SpoolFile read(final Path file) throws IOException {
+    final String fileName = file.getFileName().toString();
+    final long sequence =
+        Long.parseLong(fileName.substring(0, fileName.length() - SPOOL_SUFFIX.length()));
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      final int headerLength = in.readInt();
+      final String key = in.readUTF();
+      final String contentType = in.readBoolean() ? in.readUTF() : null;
+      final int tagCount = in.readInt();
+      final Map<String, String> tags = new HashMap<>();
+      for (int i = 0; i < tagCount; i++) {
+        tags.put(in.readUTF(), in.readUTF());
+      }
+      final long payloadOffset = Integer.BYTES + headerLength;
+      return new SpoolFile(
+          sequence, key, file, contentType, tags, payloadOffset, Files.size(file) - payloadOffset);
+    }
+  }
+
+  /**
+   * all complete spool files in the directory in sequence order, leftover temporary files of
+   * writes which have never been acknowledged are deleted
+   */
+  static List<SpoolFile> replay(final Path directory) throws IOException {
+    final List<Path> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files = list.sorted().collect(Collectors.toList());
+    }
+    final List<SpoolFile> entries = new ArrayList<>();
+    for (Path file : files) {
+      final String fileName = file.getFileName().toString();
+      if (fileName.endsWith(TEMP_SUFFIX)) {
+        Files.deleteIfExists(file);
+      } else if (fileName.endsWith(SPOOL_SUFFIX)) {
+        try {
+          entries.add(read(file));
+        } catch (IOException | RuntimeException e) {
+          Log.error("unable to replay spool file " + file, e);
+        }
+      }
+    }
+    return entries;
+  }
+
+  UploadMetadata metadata() {
+    return UploadMetadata.builder()
+        .contentType(contentType)
+        .contentLength(payloadSize)
+        .tags(tags.isEmpty() ? null : tags)
+        .build();
+  }
+
+  InputStream openPayload() throws IOException {
+    final InputStream in = Files.newInputStream(file);
+    try {
+      in.skipNBytes(payloadOffset);
+      return in;
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  void delete() {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      Log.warn("unable to delete spool file " + file + ": " + e.getMessage());
+    }
+  }
+
+  private static byte[] header(final String key, final UploadMetadata metadata)
+      throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(key);
+    out.writeBoolean(metadata.getContentType().isPresent());
+    if (metadata.getContentType().isPresent()) {
+      out.writeUTF(metadata.getContentType().get());
+    }
+    final Map<String, String> tags = metadata.getTags().orElse(Collections.emptyMap());
+    out.writeInt(tags.size());
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      out.writeUTF(tag.getKey());
+      out.writeUTF(tag.getValue());
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  // persist the rename, not every platform supports syncing a directory
+  private static void forceDirectory(final Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      Log.debug("unable to sync spool directory " + directory + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import static io.openepcis.s3.provider.TestS3Client.ok;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
+import software.amazon.awssdk.services.s3.model.HeadBucketResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+class AmazonS3ServiceImplStartupTest {
+
+  private final TestS3Config config = new TestS3Config();
+
+  // buckets of the HEAD requests per client
+  private final List<String> headBuckets = new CopyOnWriteArrayList<>();
+
+  private final List<String> asyncHeadBuckets = new CopyOnWriteArrayList<>();
+
+  private final AtomicInteger failures = new AtomicInteger();
+
+  private final TestS3Client client =
+      new TestS3Client() {
+        @Override
+        public HeadBucketResponse headBucket(HeadBucketRequest request) {
+          headBuckets.add(request.bucket());
+          if (failures.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+            throw S3Exception.builder().statusCode(503).message("S3 unavailable").build();
+          }
+          return ok(HeadBucketResponse.builder());
+        }
+      };
+
+  private final TestS3AsyncClient asyncClient =
+      new TestS3AsyncClient() {
+        @Override
+        public CompletableFuture<HeadBucketResponse> headBucket(HeadBucketRequest request) {
+          asyncHeadBuckets.add(request.bucket());
+          return CompletableFuture.completedFuture(ok(HeadBucketResponse.builder()));
+        }
+      };
+
+  private AmazonS3ServiceImpl service;
+
+  private AmazonS3ServiceImpl start() {
+    final S3ShardRouter router = new S3ShardRouter(client, asyncClient, config, null);
+    service = new AmazonS3ServiceImpl(router, new S3WriteBehindQueue(config, router), config);
+    service.startup();
+    return service;
+  }
+
+  @AfterEach
+  void shutdown() {
+    if (service != null) {
+      service.shutdown();
+    }
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.currentTimeMillis() < deadline, "timed out");
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  void blockingStartupVerifiesBeforeReturning() {
+    config.startupAsync = false;
+    start();
+    assertEquals(List.of("test"), headBuckets);
+    assertTrue(service.isReady());
+  }
+
+  @Test
+  void failedBlockingStartupFailsTheStartup() {
+    config.startupAsync = false;
+    failures.set(1);
+    assertThrows(S3Exception.class, this::start);
+    assertFalse(service.isReady());
+  }
+
+  @Test
+  void backgroundStartupIsRetriedUntilVerified() throws Exception {
+    failures.set(Integer.MAX_VALUE);
+    start();
+    await(() -> headBuckets.size() >= 3);
+    // failures are reported as not ready, not as a failed startup
+    assertFalse(service.isReady());
+    failures.set(0);
+    service.ready().await().atMost(Duration.ofSeconds(5));
+    assertTrue(service.isReady());
+  }
+
+  @Test
+  void warmUpOpensConnectionsOncePerDistinctClient() {
+    config.startupAsync = false;
+    config.warmupConnections = 3;
+    // shards without an endpoint share the default clients
+    config.shards.put("a", TestS3Config.shard("a"));
+    config.shards.put("b", TestS3Config.shard("b"));
+    start();
+    assertEquals(3 + 3, headBuckets.size());
+    assertEquals(3, asyncHeadBuckets.size());
+    assertTrue(service.isReady());
+  }
+}
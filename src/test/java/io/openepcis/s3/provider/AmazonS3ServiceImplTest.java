@@ -0,0 +1,74 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.openepcis.s3.UploadMetadata;
+import io.openepcis.s3.UploadResult;
+import io.smallrye.mutiny.Uni;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class AmazonS3ServiceImplTest {
+
+  // without clients, any request sent to S3 fails the test
+  private final TestS3Config config = new TestS3Config();
+  private final S3ShardRouter router = new S3ShardRouter(null, null, config, null);
+  private final AmazonS3ServiceImpl service =
+      new AmazonS3ServiceImpl(router, new S3WriteBehindQueue(config, router), config);
+
+  @Test
+  void moveOntoItselfKeepsTheObject() {
+    final UploadResult result = service.move("a", "a").await().indefinitely();
+    assertEquals("test", result.getBucketName());
+    assertEquals("a", result.getKey());
+  }
+
+  @Test
+  void copyOntoItselfIsRejected() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> service.copy("a", Optional.empty(), "a").await().indefinitely());
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            service
+                .copy("a", Optional.empty(), "a", UploadMetadata.builder().build())
+                .await()
+                .indefinitely());
+  }
+
+  @Test
+  void copyDiscardsPendingTargetOnWorkerThreadOnceSubscribed() {
+    final List<Thread> discards = Collections.synchronizedList(new ArrayList<>());
+    final S3WriteBehindQueue queue =
+        new S3WriteBehindQueue(config, router) {
+          @Override
+          public void discard(String key) {
+            discards.add(Thread.currentThread());
+            super.discard(key);
+          }
+        };
+    final Uni<UploadResult> copy =
+        new AmazonS3ServiceImpl(router, queue, config).copy("a", Optional.empty(), "b");
+    assertTrue(discards.isEmpty());
+    // without clients the copy itself fails
+    assertThrows(RuntimeException.class, () -> copy.await().indefinitely());
+    assertEquals(1, discards.size());
+    assertNotSame(Thread.currentThread(), discards.get(0));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class RendezvousHashTest {
+
+  private static final int KEYS = 40000;
+
+  private static String key(int i) {
+    return "epcis/documents/2024/05/" + i + ".json";
+  }
+
+  @Test
+  void mappingIsStable() {
+    final List<String> nodes = List.of("default", "node2", "node3");
+    final RendezvousHash first = new RendezvousHash(nodes);
+    final RendezvousHash second = new RendezvousHash(nodes);
+    for (int i = 0; i < KEYS; i++) {
+      assertEquals(first.select(key(i)), second.select(key(i)));
+    }
+  }
+
+  @Test
+  void keysAreDistributedEvenly() {
+    final RendezvousHash hash = new RendezvousHash(List.of("default", "a", "b", "c"));
+    final int[] counts = new int[4];
+    for (int i = 0; i < KEYS; i++) {
+      counts[hash.select(key(i))]++;
+    }
+    for (int count : counts) {
+      assertTrue(Math.abs(count - KEYS / 4) < KEYS / 40, "unbalanced: " + count);
+    }
+  }
+
+  @Test
+  void addingNodeOnlyMovesKeysToIt() {
+    final RendezvousHash before = new RendezvousHash(List.of("default", "a", "b"));
+    final RendezvousHash after = new RendezvousHash(List.of("default", "a", "b", "c"));
+    int moved = 0;
+    for (int i = 0; i < KEYS; i++) {
+      final int previous = before.select(key(i));
+      final int current = after.select(key(i));
+      if (previous != current) {
+        assertEquals(3, current, "key moved between existing nodes");
+        moved++;
+      }
+    }
+    assertTrue(Math.abs(moved - KEYS / 4) < KEYS / 40, "moved: " + moved);
+  }
+
+  @Test
+  void removingNodeOnlyMovesItsKeys() {
+    final RendezvousHash before = new RendezvousHash(List.of("default", "a", "b"));
+    final RendezvousHash after = new RendezvousHash(List.of("default", "b"));
+    for (int i = 0; i < KEYS; i++) {
+      final int previous = before.select(key(i));
+      final int current = after.select(key(i));
+      if (previous == 0) {
+        assertEquals(0, current);
+      } else if (previous == 2) {
+        assertEquals(1, current);
+      }
+    }
+  }
+}
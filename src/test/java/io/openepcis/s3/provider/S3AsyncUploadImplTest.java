@@ -0,0 +1,319 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import static io.openepcis.s3.provider.TestS3Client.ok;
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.openepcis.s3.UploadMetadata;
+import io.openepcis.s3.UploadResult;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.model.*;
+
+class S3AsyncUploadImplTest {
+
+  private static final int FIVE_MEGABYTES = 5242880;
+
+  // content of the objects stored by bucket/key
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+  // user metadata of the objects stored by bucket/key
+  private final Map<String, Map<String, String>> userMetadata = new ConcurrentHashMap<>();
+
+  private final List<Object> requests = Collections.synchronizedList(new ArrayList<>());
+
+  private boolean failUploadPart;
+
+  private boolean failCopy;
+
+  private final TestS3Client client =
+      new TestS3Client() {
+        @Override
+        public HeadObjectResponse headObject(HeadObjectRequest request) {
+          requests.add(request);
+          if (!objects.containsKey(request.bucket() + "/" + request.key())) {
+            throw NoSuchKeyException.builder().build();
+          }
+          return ok(HeadObjectResponse.builder());
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+          requests.add(request);
+          try {
+            objects.put(
+                request.bucket() + "/" + request.key(),
+                body.contentStreamProvider().newStream().readAllBytes());
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          userMetadata.put(request.bucket() + "/" + request.key(), request.metadata());
+          return ok(PutObjectResponse.builder().eTag("put"));
+        }
+
+        @Override
+        public <T> T getObject(
+            GetObjectRequest request, ResponseTransformer<GetObjectResponse, T> transformer) {
+          requests.add(request);
+          final String path = request.bucket() + "/" + request.key();
+          if (!objects.containsKey(path)) {
+            throw NoSuchKeyException.builder().build();
+          }
+          try {
+            return transformer.transform(
+                GetObjectResponse.builder()
+                    .contentLength((long) objects.get(path).length)
+                    .metadata(userMetadata.getOrDefault(path, Map.of()))
+                    .build(),
+                AbortableInputStream.create(new ByteArrayInputStream(objects.get(path))));
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }
+
+        @Override
+        public CreateMultipartUploadResponse createMultipartUpload(
+            CreateMultipartUploadRequest request) {
+          requests.add(request);
+          return ok(CreateMultipartUploadResponse.builder().uploadId("upload"));
+        }
+
+        @Override
+        public CompleteMultipartUploadResponse completeMultipartUpload(
+            CompleteMultipartUploadRequest request) {
+          requests.add(request);
+          // the fake doesn't keep the content of parts
+          objects.put(request.bucket() + "/" + request.key(), new byte[0]);
+          return ok(
+              CompleteMultipartUploadResponse.builder()
+                  .bucket(request.bucket())
+                  .key(request.key())
+                  .versionId("staged"));
+        }
+
+        @Override
+        public AbortMultipartUploadResponse abortMultipartUpload(
+            AbortMultipartUploadRequest request) {
+          requests.add(request);
+          return ok(AbortMultipartUploadResponse.builder());
+        }
+
+        @Override
+        public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+          requests.add(request);
+          objects.remove(request.bucket() + "/" + request.key());
+          return ok(DeleteObjectResponse.builder());
+        }
+      };
+
+  private final TestS3AsyncClient asyncClient =
+      new TestS3AsyncClient() {
+        @Override
+        public CompletableFuture<UploadPartResponse> uploadPart(
+            UploadPartRequest request, AsyncRequestBody body) {
+          requests.add(request);
+          if (failUploadPart) {
+            return CompletableFuture.failedFuture(new IllegalStateException("part failed"));
+          }
+          return CompletableFuture.completedFuture(
+              ok(UploadPartResponse.builder().eTag("part" + request.partNumber())));
+        }
+
+        @Override
+        public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+          return CompletableFuture.completedFuture(
+              HeadObjectResponse.builder().contentLength(FIVE_MEGABYTES + 1000L).build());
+        }
+
+        @Override
+        public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+          requests.add(request);
+          if (failCopy) {
+            return CompletableFuture.failedFuture(new IllegalStateException("copy failed"));
+          }
+          objects.put(request.destinationBucket() + "/" + request.destinationKey(), new byte[0]);
+          return CompletableFuture.completedFuture(
+              CopyObjectResponse.builder()
+                  .copyObjectResult(CopyObjectResult.builder().eTag("copied").build())
+                  .build());
+        }
+      };
+
+  private S3AsyncUploadImpl upload;
+
+  private final TestS3Config config = new TestS3Config();
+
+  private UploadResult upload(String key, byte[] content) {
+    config.dedup = true;
+    if (upload == null) {
+      upload = new S3AsyncUploadImpl(client, asyncClient, config);
+    }
+    return upload
+        .upload(
+            "test",
+            key,
+            new ByteArrayInputStream(content),
+            Optional.of(UploadMetadata.builder().contentType("application/json").build()))
+        .join();
+  }
+
+  @AfterEach
+  void close() {
+    if (upload != null) {
+      upload.close();
+    }
+  }
+
+  private static byte[] content(int size) {
+    final byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+
+  private static String blobKey(byte[] content) throws Exception {
+    final byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+    return "blobs/" + HexFormat.of().formatHex(hash);
+  }
+
+  private <T> List<T> requests(Class<T> type) {
+    return requests.stream()
+        .filter(type::isInstance)
+        .map(type::cast)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  void smallContentIsStoredOnceUnderItsHash() throws Exception {
+    final byte[] content = content(1000);
+    final UploadResult result = upload("a", content);
+    assertEquals("test", result.getBucketName());
+    assertEquals("a", result.getKey());
+    assertArrayEquals(content, objects.get("test/" + blobKey(content)));
+    assertEquals(0, objects.get("test/a").length);
+    assertEquals(
+        Map.of(
+            S3AsyncUploadImpl.DEDUP_BLOB_METADATA,
+            blobKey(content),
+            S3AsyncUploadImpl.DEDUP_BLOB_BUCKET_METADATA,
+            "test"),
+        userMetadata.get("test/a"));
+    final PutObjectRequest reference = requests(PutObjectRequest.class).get(1);
+    assertEquals("a", reference.key());
+    assertEquals("application/json", reference.contentType());
+    assertEquals(0L, reference.contentLength());
+  }
+
+  @Test
+  void smallContentOfAnExistingBlobIsNotUploaded() throws Exception {
+    final byte[] content = content(1000);
+    upload("a", content);
+    upload("b", content);
+    assertEquals(
+        List.of(blobKey(content), "a", "b"),
+        requests(PutObjectRequest.class).stream()
+            .map(PutObjectRequest::key)
+            .collect(Collectors.toList()));
+    assertEquals(
+        blobKey(content), userMetadata.get("test/b").get(S3AsyncUploadImpl.DEDUP_BLOB_METADATA));
+  }
+
+  @Test
+  void getResolvesReferencesToTheirBlob() throws Exception {
+    final byte[] content = content(1000);
+    upload("a", content);
+    // reference copied from another bucket, pointing to the blob in that bucket
+    objects.put("test/b", new byte[0]);
+    userMetadata.put(
+        "test/b",
+        Map.of(
+            S3AsyncUploadImpl.DEDUP_BLOB_METADATA,
+            "blobs/other",
+            S3AsyncUploadImpl.DEDUP_BLOB_BUCKET_METADATA,
+            "archive"));
+    objects.put("archive/blobs/other", content(10));
+    final S3ShardRouter router = new S3ShardRouter(client, asyncClient, config, upload);
+    final AmazonS3ServiceImpl service =
+        new AmazonS3ServiceImpl(router, new S3WriteBehindQueue(config, router), config);
+    try (InputStream in = service.get("a")) {
+      assertArrayEquals(content, in.readAllBytes());
+    }
+    try (InputStream in = service.get("b")) {
+      assertArrayEquals(content(10), in.readAllBytes());
+    }
+  }
+
+  @Test
+  void largeContentIsStagedAndCopiedToItsBlob() throws Exception {
+    final byte[] content = content(FIVE_MEGABYTES + 1000);
+    upload("a", content);
+    final String stagingKey = requests(CreateMultipartUploadRequest.class).get(0).key();
+    assertTrue(stagingKey.startsWith("blobs/staging/"));
+    assertEquals(2, requests(UploadPartRequest.class).size());
+    final CopyObjectRequest copy = requests(CopyObjectRequest.class).get(0);
+    assertEquals(stagingKey, copy.sourceKey());
+    assertEquals(blobKey(content), copy.destinationKey());
+    // the staging object is deleted by version, not hidden behind a delete marker
+    final DeleteObjectRequest delete = requests(DeleteObjectRequest.class).get(0);
+    assertEquals(stagingKey, delete.key());
+    assertEquals("staged", delete.versionId());
+    assertEquals(Set.of("test/" + blobKey(content), "test/a"), objects.keySet());
+  }
+
+  @Test
+  void largeContentOfAnExistingBlobIsNotCopied() throws Exception {
+    final byte[] content = content(FIVE_MEGABYTES + 1000);
+    objects.put("test/" + blobKey(content), content);
+    upload("a", content);
+    assertTrue(requests(CopyObjectRequest.class).isEmpty());
+    assertEquals("staged", requests(DeleteObjectRequest.class).get(0).versionId());
+    assertEquals(Set.of("test/" + blobKey(content), "test/a"), objects.keySet());
+  }
+
+  @Test
+  void failedStagingUploadIsAborted() {
+    failUploadPart = true;
+    assertThrows(CompletionException.class, () -> upload("a", content(FIVE_MEGABYTES + 1000)));
+    final AbortMultipartUploadRequest abort = requests(AbortMultipartUploadRequest.class).get(0);
+    assertEquals("test", abort.bucket());
+    assertTrue(abort.key().startsWith("blobs/staging/"));
+    assertEquals("upload", abort.uploadId());
+    assertTrue(requests(CompleteMultipartUploadRequest.class).isEmpty());
+    assertTrue(objects.isEmpty());
+  }
+
+  @Test
+  void failedCopyDeletesTheStagingObject() {
+    failCopy = true;
+    assertThrows(CompletionException.class, () -> upload("a", content(FIVE_MEGABYTES + 1000)));
+    assertEquals("staged", requests(DeleteObjectRequest.class).get(0).versionId());
+    assertTrue(objects.isEmpty());
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.openepcis.s3.UploadMetadata;
+import io.openepcis.s3.UploadResult;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.*;
+
+class S3ServerSideCopyTest {
+
+  private static final long MB = 1048576L;
+
+  private final TestS3Config config = new TestS3Config();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  private final List<UploadPartCopyRequest> partRequests =
+      Collections.synchronizedList(new ArrayList<>());
+
+  private final List<Object> requests = Collections.synchronizedList(new ArrayList<>());
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  private long contentLength;
+
+  private int failingPart = -1;
+
+  private long partDelay;
+
+  // answers every UploadPartCopy asynchronously, like the SDK does
+  private final TestS3AsyncClient client =
+      new TestS3AsyncClient() {
+        @Override
+        public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+          requests.add(request);
+          if (request.key().equals("reference")) {
+            return CompletableFuture.completedFuture(
+                HeadObjectResponse.builder()
+                    .contentLength(0L)
+                    .contentType("text/plain")
+                    .metadata(
+                        Map.of(
+                            S3AsyncUploadImpl.DEDUP_BLOB_METADATA,
+                            "blobs/abc",
+                            S3AsyncUploadImpl.DEDUP_BLOB_BUCKET_METADATA,
+                            "blob-bucket"))
+                    .build());
+          }
+          return CompletableFuture.completedFuture(
+              HeadObjectResponse.builder()
+                  .contentLength(contentLength)
+                  .contentType("application/json")
+                  .metadata(Map.of("origin", "test"))
+                  .build());
+        }
+
+        @Override
+        public CompletableFuture<GetObjectTaggingResponse> getObjectTagging(
+            GetObjectTaggingRequest request) {
+          return CompletableFuture.completedFuture(
+              GetObjectTaggingResponse.builder()
+                  .tagSet(Tag.builder().key("tenant").value("a").build())
+                  .build());
+        }
+
+        @Override
+        public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+          requests.add(request);
+          return CompletableFuture.completedFuture(
+              CopyObjectResponse.builder()
+                  .copyObjectResult(CopyObjectResult.builder().eTag("copied").build())
+                  .versionId("v1")
+                  .build());
+        }
+
+        @Override
+        public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(
+            CreateMultipartUploadRequest request) {
+          requests.add(request);
+          return CompletableFuture.completedFuture(
+              CreateMultipartUploadResponse.builder().uploadId("upload").build());
+        }
+
+        @Override
+        public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(
+            UploadPartCopyRequest request) {
+          partRequests.add(request);
+          maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+          return CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  Thread.sleep(partDelay);
+                } catch (InterruptedException e) {
+                  throw new IllegalStateException(e);
+                }
+                inFlight.decrementAndGet();
+                if (request.partNumber() == failingPart) {
+                  throw new IllegalStateException("part " + failingPart + " failed");
+                }
+                return UploadPartCopyResponse.builder()
+                    .copyPartResult(
+                        CopyPartResult.builder().eTag("e" + request.partNumber()).build())
+                    .build();
+              },
+              executor);
+        }
+
+        @Override
+        public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(
+            CompleteMultipartUploadRequest request) {
+          requests.add(request);
+          return CompletableFuture.completedFuture(
+              CompleteMultipartUploadResponse.builder().eTag("multipart").versionId("v2").build());
+        }
+
+        @Override
+        public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(
+            AbortMultipartUploadRequest request) {
+          requests.add(request);
+          return CompletableFuture.completedFuture(AbortMultipartUploadResponse.builder().build());
+        }
+      };
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private UploadResult copy() {
+    return new S3ServerSideCopy(client, config.copy())
+        .copy("source", "a", Optional.empty(), "target", "b", Optional.empty())
+        .join();
+  }
+
+  private <T> List<T> requests(Class<T> type) {
+    return requests.stream()
+        .filter(type::isInstance)
+        .map(type::cast)
+        .collect(Collectors.toList());
+  }
+
+  private List<String> ranges() {
+    return partRequests.stream()
+        .sorted(Comparator.comparing(UploadPartCopyRequest::partNumber))
+        .map(UploadPartCopyRequest::copySourceRange)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  void copiesObjectsUpToTheThresholdWithCopyObject() {
+    contentLength = 1000;
+    final UploadResult result = copy();
+    assertEquals("copied", result.getETag());
+    assertEquals("v1", result.getVersionId());
+    final CopyObjectRequest request = requests(CopyObjectRequest.class).get(0);
+    assertEquals("source", request.sourceBucket());
+    assertEquals("a", request.sourceKey());
+    assertEquals("target", request.destinationBucket());
+    assertEquals("b", request.destinationKey());
+    assertNull(request.metadataDirective());
+    assertTrue(partRequests.isEmpty());
+  }
+
+  @Test
+  void copiesRangesOfLargerObjectsInParts() {
+    config.copyMultipartThreshold = 10 * MB;
+    config.copyPartSize = 5 * MB;
+    contentLength = 12 * MB + 1;
+    final UploadResult result = copy();
+    assertEquals("multipart", result.getETag());
+    assertEquals(
+        List.of("bytes=0-5242879", "bytes=5242880-10485759", "bytes=10485760-12582912"), ranges());
+    partRequests.forEach(
+        request -> {
+          assertEquals("upload", request.uploadId());
+          assertEquals("source", request.sourceBucket());
+          assertEquals("b", request.destinationKey());
+        });
+    final CreateMultipartUploadRequest create =
+        requests(CreateMultipartUploadRequest.class).get(0);
+    assertEquals("application/json", create.contentType());
+    assertEquals(Map.of("origin", "test"), create.metadata());
+    assertEquals("tenant=a", create.tagging());
+    final List<CompletedPart> parts =
+        requests(CompleteMultipartUploadRequest.class).get(0).multipartUpload().parts();
+    assertEquals(
+        List.of(1, 2, 3),
+        parts.stream().map(CompletedPart::partNumber).collect(Collectors.toList()));
+    assertEquals(
+        List.of("e1", "e2", "e3"),
+        parts.stream().map(CompletedPart::eTag).collect(Collectors.toList()));
+  }
+
+  @Test
+  void partsAreAtLeastFiveMegabytes() {
+    config.copyMultipartThreshold = 0;
+    config.copyPartSize = MB;
+    contentLength = 11 * MB;
+    copy();
+    assertEquals(
+        List.of("bytes=0-5242879", "bytes=5242880-10485759", "bytes=10485760-11534335"), ranges());
+  }
+
+  @Test
+  void partCountIsCappedAtTenThousand() {
+    config.copyPartSize = 5 * MB;
+    contentLength = 100 * 1024 * MB;
+    copy();
+    final List<String> ranges = ranges();
+    assertEquals(10000, ranges.size());
+    // ceil(contentLength / 10000)
+    final long partSize = 10737419L;
+    assertEquals("bytes=0-" + (partSize - 1), ranges.get(0));
+    assertEquals(
+        "bytes=" + 9999 * partSize + "-" + (contentLength - 1), ranges.get(ranges.size() - 1));
+    assertEquals(
+        LongStream.rangeClosed(1, 10000).boxed().collect(Collectors.toList()),
+        partRequests.stream()
+            .map(request -> (long) request.partNumber())
+            .sorted()
+            .collect(Collectors.toList()));
+  }
+
+  @Test
+  void lanesStrideOverTheParts() {
+    config.copyMultipartThreshold = 0;
+    config.copyPartSize = 5 * MB;
+    config.copyConcurrency = 3;
+    contentLength = 35 * MB;
+    partDelay = 20;
+    copy();
+    assertEquals(7, ranges().size());
+    assertEquals(3, maxInFlight.get());
+    // every lane starts with its first part, the next ones follow once a lane is done with it
+    assertEquals(
+        Set.of(1, 2, 3),
+        partRequests.subList(0, 3).stream()
+            .map(UploadPartCopyRequest::partNumber)
+            .collect(Collectors.toSet()));
+  }
+
+  @Test
+  void abortsTheUploadWhenAPartFails() {
+    config.copyMultipartThreshold = 0;
+    config.copyPartSize = 5 * MB;
+    contentLength = 20 * MB;
+    failingPart = 2;
+    assertThrows(CompletionException.class, this::copy);
+    final AbortMultipartUploadRequest abort = requests(AbortMultipartUploadRequest.class).get(0);
+    assertEquals("target", abort.bucket());
+    assertEquals("b", abort.key());
+    assertEquals("upload", abort.uploadId());
+    assertTrue(requests(CompleteMultipartUploadRequest.class).isEmpty());
+  }
+
+  @Test
+  void sourceMetadataOfAReferenceHasTheContentLengthOfItsBlob() {
+    contentLength = 42;
+    final UploadMetadata metadata =
+        new S3ServerSideCopy(client, config.copy())
+            .sourceMetadata("source", "reference", Optional.empty())
+            .join();
+    // copying a reference through the service must not write an empty target
+    assertEquals(42L, metadata.getContentLength().get());
+    assertEquals("text/plain", metadata.getContentType().get());
+    assertEquals(Map.of("tenant", "a"), metadata.getTags().get());
+    final HeadObjectRequest blob = requests(HeadObjectRequest.class).get(1);
+    assertEquals("blob-bucket", blob.bucket());
+    assertEquals("blobs/abc", blob.key());
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+class S3ShardRouterTest {
+
+  // shards without endpoint don't touch the clients
+  private static S3ShardRouter router(TestS3Config config) {
+    return new S3ShardRouter(null, null, config, null);
+  }
+
+  @Test
+  void singleBucketRoutesEverythingToDefault() {
+    final S3ShardRouter router = router(new TestS3Config());
+    assertEquals(S3ShardRouter.DEFAULT_SHARD, router.shardFor("any/key").getName());
+    assertEquals("test", router.shardFor("any/key").getBucket());
+  }
+
+  @Test
+  void routesToConfiguredShards() {
+    final TestS3Config config = new TestS3Config();
+    config.shards.put("b", TestS3Config.shard("bucket-b"));
+    config.shards.put("a", TestS3Config.shard("bucket-a"));
+    final S3ShardRouter router = router(config);
+    assertEquals(
+        List.of("default", "a", "b"),
+        router.getShards().stream().map(S3Shard::getName).collect(Collectors.toList()));
+    final long used =
+        IntStream.range(0, 1000)
+            .mapToObj(i -> router.shardFor("key-" + i).getName())
+            .distinct()
+            .count();
+    assertEquals(3, used);
+  }
+
+  @Test
+  void rejectsShardNamedDefault() {
+    final TestS3Config config = new TestS3Config();
+    config.shards.put(S3ShardRouter.DEFAULT_SHARD, TestS3Config.shard("other"));
+    assertThrows(IllegalArgumentException.class, () -> router(config));
+  }
+
+  @Test
+  void candidatesWithoutFallbackAreTheOwnerOnly() {
+    final TestS3Config config = new TestS3Config();
+    config.shards.put("a", TestS3Config.shard("bucket-a"));
+    final S3ShardRouter router = router(config);
+    assertEquals(List.of(router.shardFor("key")), router.candidatesFor("key"));
+  }
+
+  @Test
+  void candidatesWithFallbackStartWithTheOwner() {
+    final TestS3Config config = new TestS3Config();
+    config.shards.put("a", TestS3Config.shard("bucket-a"));
+    config.shards.put("b", TestS3Config.shard("bucket-b"));
+    config.shardReadFallback = true;
+    final S3ShardRouter router = router(config);
+    final List<S3Shard> candidates = router.candidatesFor("key");
+    assertEquals(3, candidates.size());
+    assertSame(router.shardFor("key"), candidates.get(0));
+    assertTrue(candidates.containsAll(router.getShards()));
+  }
+}
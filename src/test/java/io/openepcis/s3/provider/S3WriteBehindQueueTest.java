@@ -0,0 +1,280 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.openepcis.s3.S3AsyncUpload;
+import io.openepcis.s3.UploadMetadata;
+import io.openepcis.s3.UploadResult;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class S3WriteBehindQueueTest {
+
+  @TempDir Path directory;
+
+  // key=content of every completed upload in order
+  private final List<String> uploads = Collections.synchronizedList(new ArrayList<>());
+
+  // tags of the latest completed upload per key
+  private final Map<String, Map<String, String>> uploadedTags = new ConcurrentHashMap<>();
+
+  private final AtomicInteger attempts = new AtomicInteger();
+
+  private final AtomicInteger failures = new AtomicInteger();
+
+  private final CountDownLatch gate = new CountDownLatch(1);
+
+  private volatile boolean gated;
+
+  private S3WriteBehindQueue queue;
+
+  private final S3AsyncUpload upload =
+      (bucket, key, in, metadata) -> {
+        attempts.incrementAndGet();
+        try {
+          if (gated) {
+            gate.await(5, TimeUnit.SECONDS);
+          }
+          final String content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+          if (failures.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+            return CompletableFuture.failedFuture(new IOException("S3 unavailable"));
+          }
+          uploadedTags.put(key, metadata.flatMap(UploadMetadata::getTags).orElse(Map.of()));
+          uploads.add(key + "=" + content);
+          return CompletableFuture.completedFuture(
+              UploadResult.builder().bucketName(bucket).key(key).build());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      };
+
+  private S3WriteBehindQueue start() {
+    final TestS3Config config = new TestS3Config();
+    config.writeBehindDirectory = directory.toString();
+    queue = new S3WriteBehindQueue(config, new S3ShardRouter(null, null, config, upload));
+    queue.replay();
+    return queue;
+  }
+
+  @AfterEach
+  void shutdown() {
+    gate.countDown();
+    if (queue != null) {
+      queue.shutdown();
+    }
+  }
+
+  private static InputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void enqueue(String key, String content) {
+    queue.enqueue(key, stream(content), UploadMetadata.builder().build()).join();
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.currentTimeMillis() < deadline, "timed out");
+      Thread.sleep(5);
+    }
+  }
+
+  private boolean spoolEmpty() {
+    try (var files = Files.list(directory)) {
+      return files.findAny().isEmpty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private String read(String key) throws IOException {
+    try (InputStream in = queue.get(key).orElseThrow()) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  void acknowledgesBeforeUploadAndDrains() throws Exception {
+    start();
+    final UploadResult result =
+        queue
+            .enqueue(
+                "a", stream("1"), UploadMetadata.builder().contentType("application/json").build())
+            .join();
+    assertEquals("test", result.getBucketName());
+    assertEquals("a", result.getKey());
+    assertNull(result.getETag());
+    await(() -> uploads.contains("a=1"));
+    await(() -> !queue.isPending("a"));
+    await(this::spoolEmpty);
+    assertTrue(queue.get("a").isEmpty());
+  }
+
+  @Test
+  void pendingUploadsAreServedFromSpool() throws Exception {
+    gated = true;
+    start();
+    queue
+        .enqueue("a", stream("1"), UploadMetadata.builder().contentType("text/plain").build())
+        .join();
+    assertTrue(queue.isPending("a"));
+    assertEquals("1", read("a"));
+    assertEquals("text/plain", queue.metadata("a").get().getContentType().get());
+    gate.countDown();
+    await(() -> !queue.isPending("a"));
+    assertEquals(List.of("a=1"), uploads);
+  }
+
+  @Test
+  void newerUploadIsDrainedAfterTheOneInFlight() throws Exception {
+    gated = true;
+    start();
+    enqueue("a", "1");
+    await(() -> attempts.get() == 1);
+    enqueue("a", "2");
+    assertEquals("2", read("a"));
+    gate.countDown();
+    await(() -> !queue.isPending("a"));
+    assertEquals(List.of("a=1", "a=2"), uploads);
+    await(this::spoolEmpty);
+  }
+
+  @Test
+  void replaysSpoolInSequenceOrder() throws Exception {
+    for (String[] entry :
+        new String[][] {{"1", "a", "old"}, {"2", "b", "b"}, {"3", "a", "new"}}) {
+      SpoolFile.write(
+          directory,
+          Long.parseLong(entry[0]),
+          entry[1],
+          stream(entry[2]),
+          UploadMetadata.builder().build());
+    }
+    final Path temp = directory.resolve("00000000000000000004.spool" + SpoolFile.TEMP_SUFFIX);
+    Files.writeString(temp, "never acknowledged");
+    start();
+    assertFalse(Files.exists(temp));
+    await(() -> !queue.isPending("a") && !queue.isPending("b"));
+    assertTrue(uploads.contains("b=b"));
+    // the superseded upload may have been in flight already, but never after the newer one
+    assertEquals(
+        "a=new", uploads.stream().filter(u -> u.startsWith("a=")).reduce((x, y) -> y).get());
+    await(this::spoolEmpty);
+  }
+
+  @Test
+  void continuesSequenceAfterReplay() throws Exception {
+    SpoolFile.write(directory, 7, "a", stream("1"), UploadMetadata.builder().build());
+    gated = true;
+    start();
+    enqueue("b", "2");
+    try (var files = Files.list(directory)) {
+      assertTrue(
+          files.anyMatch(
+              file -> file.getFileName().toString().equals("00000000000000000008.spool")));
+    }
+  }
+
+  @Test
+  void retriesUntilUploadSucceeds() throws Exception {
+    failures.set(8);
+    start();
+    enqueue("a", "1");
+    await(() -> uploads.contains("a=1"));
+    assertEquals(9, attempts.get());
+    await(this::spoolEmpty);
+  }
+
+  @Test
+  void discardDoesNotWaitForRetries() throws Exception {
+    failures.set(Integer.MAX_VALUE);
+    start();
+    enqueue("a", "1");
+    await(() -> attempts.get() >= 2);
+    final long started = System.nanoTime();
+    queue.discard("a");
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1000);
+    assertFalse(queue.isPending("a"));
+    failures.set(0);
+    Thread.sleep(100);
+    assertTrue(uploads.isEmpty());
+    await(this::spoolEmpty);
+  }
+
+  @Test
+  void interruptedDiscardDeletesTheSpoolFile() throws Exception {
+    gated = true;
+    start();
+    enqueue("a", "1");
+    await(() -> attempts.get() == 1);
+    enqueue("a", "2");
+    Thread.currentThread().interrupt();
+    queue.discard("a");
+    assertTrue(Thread.interrupted());
+    assertFalse(queue.isPending("a"));
+    try (var files = Files.list(directory)) {
+      // only the entry in flight is left, it is deleted once its upload is done
+      assertEquals(1, files.count());
+    }
+    gate.countDown();
+    await(this::spoolEmpty);
+    assertEquals(List.of("a=1"), uploads);
+  }
+
+  @Test
+  void addTagsRespoolsThePendingEntry() throws Exception {
+    gated = true;
+    start();
+    queue
+        .enqueue(
+            "a",
+            stream("1"),
+            UploadMetadata.builder().contentType("text/plain").tags(Map.of("x", "1")).build())
+        .join();
+    await(() -> attempts.get() == 1);
+    assertTrue(queue.addTags("a", Map.of("y", "2")));
+    assertEquals("1", read("a"));
+    assertEquals(Map.of("x", "1", "y", "2"), queue.metadata("a").get().getTags().get());
+    assertEquals("text/plain", queue.metadata("a").get().getContentType().get());
+    gate.countDown();
+    await(() -> !queue.isPending("a"));
+    // the upload in flight without the new tag is followed by the one with it
+    assertEquals(List.of("a=1", "a=1"), uploads);
+    assertEquals(Map.of("x", "1", "y", "2"), uploadedTags.get("a"));
+    await(this::spoolEmpty);
+    assertFalse(queue.addTags("a", Map.of("z", "3")));
+  }
+}
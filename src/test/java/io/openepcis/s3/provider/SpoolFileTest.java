@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.openepcis.s3.UploadMetadata;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpoolFileTest {
+
+  @TempDir Path directory;
+
+  private SpoolFile write(long sequence, String key, String content) throws IOException {
+    return SpoolFile.write(
+        directory,
+        sequence,
+        key,
+        new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+        UploadMetadata.builder().build());
+  }
+
+  private static String payload(SpoolFile entry) throws IOException {
+    try (InputStream in = entry.openPayload()) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  void roundTrip() throws IOException {
+    final SpoolFile written =
+        SpoolFile.write(
+            directory,
+            42,
+            "epcis/documents/äöü.json",
+            new ByteArrayInputStream(
+                "{\"type\":\"EPCISDocument\"}".getBytes(StandardCharsets.UTF_8)),
+            UploadMetadata.builder()
+                .contentType("application/ld+json")
+                .tags(Map.of("tenant", "a", "source", "capture"))
+                .build());
+    final SpoolFile read = SpoolFile.read(written.file);
+    assertEquals(42, read.sequence);
+    assertEquals("epcis/documents/äöü.json", read.key);
+    assertEquals("{\"type\":\"EPCISDocument\"}", payload(read));
+    final UploadMetadata metadata = read.metadata();
+    assertEquals("application/ld+json", metadata.getContentType().get());
+    assertEquals(24L, metadata.getContentLength().get());
+    assertEquals(Map.of("tenant", "a", "source", "capture"), metadata.getTags().get());
+  }
+
+  @Test
+  void emptyPayloadWithoutMetadata() throws IOException {
+    final SpoolFile read = SpoolFile.read(write(1, "empty", "").file);
+    assertEquals("", payload(read));
+    assertTrue(read.metadata().getContentType().isEmpty());
+    assertTrue(read.metadata().getTags().isEmpty());
+    assertEquals(0L, read.metadata().getContentLength().get());
+  }
+
+  @Test
+  void writeLeavesNoTemporaryFile() throws IOException {
+    write(1, "key", "content");
+    try (var files = Files.list(directory)) {
+      assertEquals(
+          List.of("00000000000000000001.spool"),
+          files.map(file -> file.getFileName().toString()).collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  void replayReturnsEntriesInSequenceOrder() throws IOException {
+    write(10, "c", "3");
+    write(2, "a", "1");
+    write(9, "b", "2");
+    final List<SpoolFile> entries = SpoolFile.replay(directory);
+    assertEquals(
+        List.of("a", "b", "c"), entries.stream().map(e -> e.key).collect(Collectors.toList()));
+    assertEquals(
+        List.of(2L, 9L, 10L),
+        entries.stream().map(e -> e.sequence).collect(Collectors.toList()));
+  }
+
+  @Test
+  void replayDeletesTemporaryFiles() throws IOException {
+    write(1, "a", "1");
+    final Path temp = directory.resolve("00000000000000000002.spool" + SpoolFile.TEMP_SUFFIX);
+    Files.writeString(temp, "incomplete");
+    final List<SpoolFile> entries = SpoolFile.replay(directory);
+    assertEquals(1, entries.size());
+    assertFalse(Files.exists(temp));
+  }
+
+  @Test
+  void replaySkipsUnreadableFiles() throws IOException {
+    write(1, "a", "1");
+    Files.write(directory.resolve("00000000000000000002.spool"), new byte[] {0, 0});
+    assertEquals(
+        List.of("a"),
+        SpoolFile.replay(directory).stream().map(e -> e.key).collect(Collectors.toList()));
+  }
+
+  @Test
+  void delete() throws IOException {
+    final SpoolFile entry = write(1, "a", "1");
+    entry.delete();
+    assertFalse(Files.exists(entry.file));
+    entry.delete();
+  }
+}
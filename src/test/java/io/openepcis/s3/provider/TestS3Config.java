@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022-2024 benelog GmbH & Co. KG
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+package io.openepcis.s3.provider;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/** plain S3Config for tests running without a Quarkus application */
+class TestS3Config implements S3Config {
+
+  final Map<String, Shard> shards = new HashMap<>();
+
+  boolean shardReadFallback;
+
+  String writeBehindDirectory;
+
+  long copyMultipartThreshold = 268435456L;
+
+  long copyPartSize = 67108864L;
+
+  int copyConcurrency = 8;
+
+  boolean dedup;
+
+  boolean startupAsync = true;
+
+  int warmupConnections;
+
+  static Shard shard(String bucket) {
+    return new Shard() {
+      @Override
+      public String bucket() {
+        return bucket;
+      }
+
+      @Override
+      public Optional<URI> endpoint() {
+        return Optional.empty();
+      }
+
+      @Override
+      public boolean pathStyleAccess() {
+        return false;
+      }
+    };
+  }
+
+  @Override
+  public String bucket() {
+    return "test";
+  }
+
+  @Override
+  public String jsonSchemaKeyPrefix() {
+    return "json-schema/";
+  }
+
+  @Override
+  public String xsdSchemaKeyPrefix() {
+    return "xsd-schema/";
+  }
+
+  @Override
+  public String documentKeyPrefixDateFormat() {
+    return "yyyy/MM/dd";
+  }
+
+  @Override
+  public Map<String, Shard> shards() {
+    return shards;
+  }
+
+  @Override
+  public boolean shardReadFallback() {
+    return shardReadFallback;
+  }
+
+  @Override
+  public WriteBehind writeBehind() {
+    return new WriteBehind() {
+      @Override
+      public boolean enabled() {
+        return writeBehindDirectory != null;
+      }
+
+      @Override
+      public String directory() {
+        return writeBehindDirectory;
+      }
+
+      @Override
+      public int concurrency() {
+        return 2;
+      }
+
+      @Override
+      public Duration retryBackoff() {
+        return Duration.ofMillis(10);
+      }
+
+      @Override
+      public Duration maxRetryBackoff() {
+        return Duration.ofMillis(40);
+      }
+    };
+  }
+
+  @Override
+  public Copy copy() {
+    return new Copy() {
+      @Override
+      public long multipartThreshold() {
+        return copyMultipartThreshold;
+      }
+
+      @Override
+      public long partSize() {
+        return copyPartSize;
+      }
+
+      @Override
+      public int concurrency() {
+        return copyConcurrency;
+      }
+    };
+  }
+
+  @Override
+  public Dedup dedup() {
+    return new Dedup() {
+      @Override
+      public boolean enabled() {
+        return dedup;
+      }
+
+      @Override
+      public String keyPrefix() {
+        return "blobs/";
+      }
+    };
+  }
+
+  @Override
+  public Startup startup() {
+    return new Startup() {
+      @Override
+      public boolean verifyBuckets() {
+        return true;
+      }
+
+      @Override
+      public boolean async() {
+        return startupAsync;
+      }
+
+      @Override
+      public int warmupConnections() {
+        return warmupConnections;
+      }
+
+      @Override
+      public Duration retryBackoff() {
+        return Duration.ofMillis(10);
+      }
+
+      @Override
+      public Duration maxRetryBackoff() {
+        return Duration.ofMillis(40);
+      }
+    };
+  }
+}